@@ -0,0 +1,110 @@
+package bothack;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Internal, time limit for the ActionHandler chain and its overrun counters. */
+public final class ActionBudget implements ActionBudgetMBean {
+	public static final String OBJECT_NAME = "bothack:type=ActionBudget";
+
+	private volatile long budgetNanos;
+	private final AtomicLong late = new AtomicLong();
+	private final AtomicLong timely = new AtomicLong();
+	private final ConcurrentMap<String, AtomicLong> overruns =
+			new ConcurrentHashMap<String, AtomicLong>();
+
+	public ActionBudget(long millis) {
+		setBudgetMillis(millis);
+	}
+
+	public long budgetNanos() {
+		return budgetNanos;
+	}
+
+	/** Called when the deadline passed while the handler was choosing an action. */
+	public void overrun(String handler) {
+		AtomicLong count = overruns.get(handler);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = overruns.putIfAbsent(handler, newCount);
+			if (count == null)
+				count = newCount;
+		}
+		count.incrementAndGet();
+	}
+
+	public void actionChosen(boolean inTime) {
+		(inTime ? timely : late).incrementAndGet();
+	}
+
+	@Override
+	public long getBudgetMillis() {
+		return budgetNanos / 1000000;
+	}
+
+	@Override
+	public void setBudgetMillis(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("Action budget must be positive");
+		budgetNanos = millis * 1000000;
+	}
+
+	@Override
+	public long getLateActions() {
+		return late.get();
+	}
+
+	@Override
+	public long getTimelyActions() {
+		return timely.get();
+	}
+
+	@Override
+	public String[] getOverruns() {
+		List<Map.Entry<String, AtomicLong>> entries =
+				new ArrayList<Map.Entry<String, AtomicLong>>(overruns.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+			@Override
+			public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+				return Long.compare(b.getValue().get(), a.getValue().get());
+			}
+		});
+		String[] res = new String[entries.size()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue().get();
+		return res;
+	}
+
+	@Override
+	public void reset() {
+		late.set(0);
+		timely.set(0);
+		overruns.clear();
+	}
+
+	public void registerMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d ms budget, %d late / %d timely actions, overruns: %s",
+				getBudgetMillis(), getLateActions(), getTimelyActions(),
+				Arrays.toString(getOverruns()));
+	}
+}
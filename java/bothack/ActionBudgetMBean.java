@@ -0,0 +1,15 @@
+package bothack;
+
+/** JMX view of {@link ActionBudget}. */
+public interface ActionBudgetMBean {
+	/** Time limit for choosing an action. */
+	long getBudgetMillis();
+	void setBudgetMillis(long millis);
+	/** Actions chosen (by any handler) after the deadline passed. */
+	long getLateActions();
+	/** Actions chosen within the time limit. */
+	long getTimelyActions();
+	/** Per-handler counts of calls during which the deadline passed, most first. */
+	String[] getOverruns();
+	void reset();
+}
@@ -0,0 +1,415 @@
+package bothack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Internal, an HPA*-style abstraction of a level for long-range navigation.
+ * <p>Cells are indexed like the level grids: (y-1)*80+x.  The map is split
+ * into 10x7 clusters.  Each run of cells along a cluster border that can be
+ * crossed into the neighboring cluster gets one entrance in its middle,
+ * cluster corners crossable diagonally get one too.  Distances between the
+ * entrances of a cluster are precomputed by a BFS within the cluster.
+ * Routes are searched on the graph of entrances, refining them to grid paths
+ * is left to the caller.</p>
+ * <p>Graphs are immutable.  {@link #build} reuses the distances of clusters
+ * from the previous graph whose cells and entrances didn't change, so only the
+ * clusters where doors opened, walls were dug or boulders moved are searched
+ * again.</p>
+ */
+public final class ClusterGraph {
+	private static final int W = 80;
+	private static final int H = 21;
+	private static final int N = W * H;
+	private static final int CW = 10;
+	private static final int CH = 7;
+	private static final int CX = W / CW;
+	private static final int CY = H / CH;
+	private static final int[] DX = { 0, 0, -1, 1, -1, 1, -1, 1 };
+	private static final int[] DY = { -1, 1, 0, 0, -1, -1, 1, 1 };
+
+	private static final class Cluster {
+		final long[] signature;
+		final int[] entrances; // sorted cells
+		final int[][] dist; // between entrances, -1 if unreachable
+
+		Cluster(long[] signature, int[] entrances, int[][] dist) {
+			this.signature = signature;
+			this.entrances = entrances;
+			this.dist = dist;
+		}
+	}
+
+	private final boolean[] passable;
+	private final boolean[] noDiag;
+	private final Cluster[] clusters;
+	/** node index => cell */
+	private final int[] nodes;
+	/** cell => node index or -1 */
+	private final int[] nodeOf;
+	/** node index => pairs of (neighbor node, cost) */
+	private final int[][] edges;
+	private final int recomputed;
+
+	private ClusterGraph(boolean[] passable, boolean[] noDiag, ClusterGraph prev) {
+		this.passable = passable;
+		this.noDiag = noDiag;
+		List<int[]> transitions = transitions();
+		List<List<Integer>> clusterEntrances = new ArrayList<List<Integer>>();
+		for (int c = 0; c < CX * CY; c++)
+			clusterEntrances.add(new ArrayList<Integer>());
+		this.nodeOf = new int[N];
+		Arrays.fill(nodeOf, -1);
+		List<Integer> nodeList = new ArrayList<Integer>();
+		for (int[] t : transitions) {
+			for (int cell : t) {
+				if (nodeOf[cell] < 0) {
+					nodeOf[cell] = nodeList.size();
+					nodeList.add(cell);
+					clusterEntrances.get(cluster(cell)).add(cell);
+				}
+			}
+		}
+		this.nodes = new int[nodeList.size()];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = nodeList.get(i);
+
+		this.clusters = new Cluster[CX * CY];
+		int[] queue = new int[CW * CH];
+		int[] seen = new int[N];
+		int n = 0;
+		for (int c = 0; c < clusters.length; c++) {
+			int[] entrances = toSortedArray(clusterEntrances.get(c));
+			long[] signature = signature(c);
+			Cluster old = prev == null ? null : prev.clusters[c];
+			if (old != null && Arrays.equals(old.signature, signature)
+					&& Arrays.equals(old.entrances, entrances)) {
+				clusters[c] = old;
+				continue;
+			}
+			++n;
+			int[][] dist = new int[entrances.length][];
+			for (int i = 0; i < entrances.length; i++) {
+				bfs(c, entrances[i], seen, queue);
+				dist[i] = new int[entrances.length];
+				for (int j = 0; j < entrances.length; j++)
+					dist[i][j] = seen[entrances[j]] - 1;
+			}
+			clusters[c] = new Cluster(signature, entrances, dist);
+		}
+		this.recomputed = n;
+
+		List<List<Integer>> adj = new ArrayList<List<Integer>>();
+		for (int i = 0; i < nodes.length; i++)
+			adj.add(new ArrayList<Integer>());
+		for (int[] t : transitions) {
+			link(adj, nodeOf[t[0]], nodeOf[t[1]], 1);
+			link(adj, nodeOf[t[1]], nodeOf[t[0]], 1);
+		}
+		for (Cluster cl : clusters)
+			for (int i = 0; i < cl.entrances.length; i++)
+				for (int j = 0; j < cl.entrances.length; j++)
+					if (i != j && cl.dist[i][j] > 0)
+						link(adj, nodeOf[cl.entrances[i]], nodeOf[cl.entrances[j]],
+								cl.dist[i][j]);
+		this.edges = new int[nodes.length][];
+		for (int i = 0; i < nodes.length; i++)
+			edges[i] = toArray(adj.get(i));
+	}
+
+	/**
+	 * @param prev the previous graph of the level or null
+	 * @param passable cells that can be entered
+	 * @param noDiag cells that can't be entered or left diagonally (doors)
+	 */
+	public static ClusterGraph build(ClusterGraph prev, boolean[] passable,
+			boolean[] noDiag) {
+		if (passable.length != N || noDiag.length != N)
+			throw new IllegalArgumentException("expected " + N + " cells");
+		return new ClusterGraph(passable.clone(), noDiag.clone(), prev);
+	}
+
+	/** Number of clusters whose distances were computed when building the graph. */
+	public int recomputedClusters() {
+		return recomputed;
+	}
+
+	public int nodeCount() {
+		return nodes.length;
+	}
+
+	private static void link(List<List<Integer>> adj, int from, int to, int cost) {
+		adj.get(from).add(to);
+		adj.get(from).add(cost);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] res = new int[list.size()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = list.get(i);
+		return res;
+	}
+
+	private static int[] toSortedArray(List<Integer> list) {
+		int[] res = toArray(list);
+		Arrays.sort(res);
+		return res;
+	}
+
+	private static int cluster(int cell) {
+		return (cell / W) / CH * CX + (cell % W) / CW;
+	}
+
+	private static int step(int cell, int dir) {
+		int x = cell % W + DX[dir];
+		int y = cell / W + DY[dir];
+		return x < 0 || x >= W || y < 0 || y >= H ? -1 : y * W + x;
+	}
+
+	private boolean canStep(int from, int to) {
+		return passable[from] && passable[to] && diagonalOk(from, to);
+	}
+
+	private long[] signature(int c) {
+		long[] res = new long[4];
+		int x0 = c % CX * CW, y0 = c / CX * CH;
+		int bit = 0;
+		for (int y = y0; y < y0 + CH; y++) {
+			for (int x = x0; x < x0 + CW; x++, bit++) {
+				int cell = y * W + x;
+				if (passable[cell])
+					res[bit >>> 6] |= 1L << (bit & 63);
+				if (noDiag[cell])
+					res[2 + (bit >>> 6)] |= 1L << (bit & 63);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Cell pairs (a, b) crossing between neighboring clusters, one per run of
+	 * crossable border cells.
+	 */
+	private List<int[]> transitions() {
+		List<int[]> res = new ArrayList<int[]>();
+		for (int cy = 0; cy < CY; cy++) {
+			for (int cx = 0; cx < CX; cx++) {
+				int x0 = cx * CW, y0 = cy * CH;
+				if (cx + 1 < CX) // border with the cluster to the right
+					borderTransitions(res, (x0 + CW - 1) + y0 * W, W, 1, CH);
+				if (cy + 1 < CY) // border with the cluster below
+					borderTransitions(res, x0 + (y0 + CH - 1) * W, 1, W, CW);
+				if (cx + 1 < CX && cy + 1 < CY) {
+					int a = (x0 + CW - 1) + (y0 + CH - 1) * W;
+					if (canStep(a, a + W + 1))
+						res.add(new int[] { a, a + W + 1 });
+				}
+				if (cx > 0 && cy + 1 < CY) {
+					int a = x0 + (y0 + CH - 1) * W;
+					if (canStep(a, a + W - 1))
+						res.add(new int[] { a, a + W - 1 });
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @param first the first border cell on this side
+	 * @param along offset between consecutive border cells
+	 * @param across offset to the cell on the other side
+	 * @param len number of cells along the border
+	 */
+	private void borderTransitions(List<int[]> res, int first, int along,
+			int across, int len) {
+		int[] partner = new int[len];
+		for (int k = 0; k < len; k++) {
+			int a = first + k * along;
+			partner[k] = -1;
+			if (canStep(a, a + across))
+				partner[k] = a + across;
+			else if (k > 0 && canStep(a, a + across - along))
+				partner[k] = a + across - along;
+			else if (k + 1 < len && canStep(a, a + across + along))
+				partner[k] = a + across + along;
+		}
+		for (int k = 0; k < len; ) {
+			if (partner[k] < 0) {
+				++k;
+				continue;
+			}
+			int end = k;
+			while (end + 1 < len && partner[end + 1] >= 0)
+				++end;
+			int mid = (k + end) / 2;
+			res.add(new int[] { first + mid * along, partner[mid] });
+			k = end + 1;
+		}
+	}
+
+	/**
+	 * BFS within the cluster from the cell (which doesn't need to be
+	 * passable), seen[cell] is set to distance+1 for reached cells of the
+	 * cluster, 0 for the rest.
+	 */
+	private void bfs(int c, int from, int[] seen, int[] queue) {
+		int x0 = c % CX * CW, y0 = c / CX * CH;
+		for (int y = y0; y < y0 + CH; y++)
+			Arrays.fill(seen, y * W + x0, y * W + x0 + CW, 0);
+		int head = 0, tail = 0;
+		seen[from] = 1;
+		queue[tail++] = from;
+		while (head < tail) {
+			int cell = queue[head++];
+			for (int d = 0; d < 8; d++) {
+				int next = step(cell, d);
+				if (next < 0 || seen[next] != 0 || cluster(next) != c
+						|| !passable[next] || !diagonalOk(cell, next))
+					continue;
+				seen[next] = seen[cell] + 1;
+				queue[tail++] = next;
+			}
+		}
+	}
+
+	private boolean diagonalOk(int from, int to) {
+		boolean diagonal = from % W != to % W && from / W != to / W;
+		return !diagonal || (!noDiag[from] && !noDiag[to]);
+	}
+
+	private static int chebyshev(int a, int b) {
+		return Math.max(Math.abs(a % W - b % W), Math.abs(a / W - b / W));
+	}
+
+	/**
+	 * A* over the entrances from the start cell to the target (node index
+	 * nodes.length).  The starting cell and the target don't need to be
+	 * passable.  Cells in the same cluster are also connected directly if
+	 * there is a path within the cluster.
+	 * @param prev filled with the previous node on the best route to each
+	 *     node, -1 for the first entrances (or the target reached directly)
+	 * @param limited if the search should give up at the deadline
+	 * @param deadline System.nanoTime() value to give up at
+	 * @return cost of the route or -1 if not found (in time)
+	 */
+	private int search(int from, int to, int[] prev, boolean limited, long deadline) {
+		int cf = cluster(from), ct = cluster(to);
+		int[] queue = new int[CW * CH];
+		int[] fromDist = new int[N];
+		bfs(cf, from, fromDist, queue);
+		int[] toDist = new int[N];
+		bfs(ct, to, toDist, queue);
+		int goal = nodes.length;
+		int[] dist = new int[nodes.length + 1];
+		Arrays.fill(dist, Integer.MAX_VALUE);
+		Arrays.fill(prev, -1);
+		PriorityQueue<long[]> open = new PriorityQueue<long[]>(64,
+				new Comparator<long[]>() {
+					@Override
+					public int compare(long[] a, long[] b) {
+						return Long.compare(a[0], b[0]);
+					}
+				});
+		if (cf == ct && fromDist[to] != 0) {
+			dist[goal] = fromDist[to] - 1;
+			open.add(new long[] { dist[goal], goal });
+		}
+		for (int e : clusters[cf].entrances) {
+			if (fromDist[e] == 0)
+				continue;
+			int i = nodeOf[e];
+			dist[i] = fromDist[e] - 1;
+			open.add(new long[] { dist[i] + chebyshev(e, to), i });
+		}
+		int polled = 0;
+		while (!open.isEmpty()) {
+			if (limited && (++polled & 63) == 0 && System.nanoTime() - deadline > 0)
+				return -1;
+			long[] top = open.poll();
+			int i = (int) top[1];
+			if (i == goal)
+				return dist[goal];
+			if (top[0] > dist[i] + chebyshev(nodes[i], to))
+				continue; // stale entry
+			int cell = nodes[i];
+			if (cluster(cell) == ct && toDist[cell] != 0) {
+				int d = dist[i] + toDist[cell] - 1;
+				if (d < dist[goal]) {
+					dist[goal] = d;
+					prev[goal] = i;
+					open.add(new long[] { d, goal });
+				}
+			}
+			int[] e = edges[i];
+			for (int k = 0; k < e.length; k += 2) {
+				int j = e[k];
+				int d = dist[i] + e[k + 1];
+				if (d < dist[j]) {
+					dist[j] = d;
+					prev[j] = i;
+					open.add(new long[] { d + chebyshev(nodes[j], to), j });
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches the abstract route between two cells in different clusters.
+	 * @return cells of the route (from, entrances..., to) or null if the cells
+	 *     are in the same cluster or no route was found
+	 */
+	public int[] route(int from, int to) {
+		return route(from, to, false, 0);
+	}
+
+	/**
+	 * Like {@link #route(int, int)}, but gives up (returns null) when
+	 * System.nanoTime() passes the deadline.
+	 */
+	public int[] route(int from, int to, long deadline) {
+		return route(from, to, true, deadline);
+	}
+
+	private int[] route(int from, int to, boolean limited, long deadline) {
+		if (cluster(from) == cluster(to))
+			return null;
+		int goal = nodes.length;
+		int[] prev = new int[nodes.length + 1];
+		if (search(from, to, prev, limited, deadline) < 0)
+			return null;
+		int len = 2;
+		for (int i = prev[goal]; i >= 0; i = prev[i])
+			++len;
+		int[] res = new int[len];
+		res[0] = from;
+		res[len - 1] = to;
+		int k = len - 2;
+		for (int i = prev[goal]; i >= 0; i = prev[i])
+			res[k--] = nodes[i];
+		return res;
+	}
+
+	/**
+	 * Approximate number of moves between two cells (the length of the
+	 * abstract route, exact within a cluster), -1 if there is no route.
+	 */
+	public int distance(int from, int to) {
+		if (from == to)
+			return 0;
+		return search(from, to, new int[nodes.length + 1], false, 0);
+	}
+
+	/**
+	 * Like {@link #distance(int, int)}, but gives up (returns -1) when
+	 * System.nanoTime() passes the deadline.
+	 */
+	public int distance(int from, int to, long deadline) {
+		if (from == to)
+			return 0;
+		return search(from, to, new int[nodes.length + 1], true, deadline);
+	}
+}
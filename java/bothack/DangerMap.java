@@ -0,0 +1,65 @@
+package bothack;
+
+import java.util.Arrays;
+
+/**
+ * Internal, per-tile danger of a level – the expected damage hostile monsters
+ * can deal to the player on the tile next turn.
+ * <p>Contributions of monsters are added and subtracted one by one so the map
+ * can be updated incrementally as monsters move.  Instances are not modified
+ * once they are handed out, {@link #copy()} first.</p>
+ */
+public final class DangerMap {
+	public static final int WIDTH = 80;
+	public static final int HEIGHT = 21;
+	/** Range of ranged attacks (like BOLT_LIM in NetHack). */
+	public static final int RANGED_REACH = 8;
+
+	private final double[] danger;
+
+	public DangerMap() {
+		danger = new double[WIDTH * HEIGHT];
+	}
+
+	private DangerMap(double[] danger) {
+		this.danger = danger;
+	}
+
+	public DangerMap copy() {
+		return new DangerMap(Arrays.copyOf(danger, danger.length));
+	}
+
+	private void add(int x, int y, double weight) {
+		if (x >= 0 && x < WIDTH && y >= 1 && y <= HEIGHT)
+			danger[(y - 1) * WIDTH + x] += weight;
+	}
+
+	/**
+	 * Adds (or with sign -1 subtracts) the contribution of a monster at x, y.
+	 * Melee danger applies to all tiles within reach (the monster can get
+	 * adjacent and attack), ranged danger to the tiles in line with the monster
+	 * up to {@link #RANGED_REACH} away.
+	 */
+	public void addMonster(int x, int y, int reach, double melee, double ranged, int sign) {
+		if (melee > 0)
+			for (int dy = -reach; dy <= reach; dy++)
+				for (int dx = -reach; dx <= reach; dx++)
+					if (dx != 0 || dy != 0)
+						add(x + dx, y + dy, sign * melee);
+		if (ranged > 0)
+			for (int dy = -1; dy <= 1; dy++)
+				for (int dx = -1; dx <= 1; dx++)
+					if (dx != 0 || dy != 0)
+						for (int d = 1; d <= RANGED_REACH; d++)
+							add(x + dx * d, y + dy * d, sign * ranged);
+	}
+
+	/** Danger of the tile, 0 if no hostile can reach it. */
+	public double at(int x, int y) {
+		if (x < 0 || x >= WIDTH || y < 1 || y > HEIGHT)
+			return 0;
+		// ignore rounding leftovers of repeated add/subtract
+		double d = danger[(y - 1) * WIDTH + x];
+		return d < 1e-6 ? 0 : d;
+	}
+}
@@ -0,0 +1,67 @@
+package bothack;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import clojure.lang.Keyword;
+
+/**
+ * Internal, precomputed keyword &lt;-&gt; enum conversion tables for the Java API
+ * enums (built once per enum class).
+ */
+public final class EnumTables {
+	private EnumTables() {}
+
+	/** :foo-bar for FOO_BAR */
+	private static Keyword nameKeyword(Enum<?> e) {
+		return Keyword.intern(null, e.name().toLowerCase().replace('_', '-'));
+	}
+
+	private static final ClassValue<Map<Keyword, Enum<?>>> byKeyword =
+			new ClassValue<Map<Keyword, Enum<?>>>() {
+		@Override
+		protected Map<Keyword, Enum<?>> computeValue(Class<?> cls) {
+			Map<Keyword, Enum<?>> res = new HashMap<Keyword, Enum<?>>();
+			for (Object e : cls.getEnumConstants())
+				res.put(nameKeyword((Enum<?>) e), (Enum<?>) e);
+			return res;
+		}
+	};
+
+	private static final ClassValue<Keyword[]> byOrdinal = new ClassValue<Keyword[]>() {
+		@Override
+		protected Keyword[] computeValue(Class<?> cls) {
+			Object[] constants = cls.getEnumConstants();
+			Keyword[] res = new Keyword[constants.length];
+			Method getKeyword;
+			try {
+				getKeyword = cls.getMethod("getKeyword");
+			} catch (NoSuchMethodException e) {
+				getKeyword = null;
+			}
+			for (int i = 0; i < constants.length; i++) {
+				try {
+					res[i] = getKeyword != null ? (Keyword) getKeyword.invoke(constants[i])
+							: nameKeyword((Enum<?>) constants[i]);
+				} catch (ReflectiveOperationException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return res;
+		}
+	};
+
+	/**
+	 * Returns the enum constant of cls for the keyword (:foo-bar for FOO_BAR),
+	 * or null if kw is not a known keyword of the enum.
+	 */
+	public static Enum<?> fromKeyword(Class<?> cls, Object kw) {
+		return byKeyword.get(cls).get(kw);
+	}
+
+	/** The keyword representation of the enum constant (as returned by getKeyword()). */
+	public static Keyword toKeyword(Enum<?> e) {
+		return byOrdinal.get(e.getDeclaringClass())[e.ordinal()];
+	}
+}
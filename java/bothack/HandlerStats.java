@@ -0,0 +1,216 @@
+package bothack;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import bothack.bot.IHandlerTiming;
+
+/** Internal, used by the delegator to collect per-handler timings. */
+public final class HandlerStats implements HandlerStatsMBean {
+	public static final String OBJECT_NAME = "bothack:type=HandlerStats";
+
+	/** Log-linear histogram buckets: 2^SUB_BITS sub-buckets per power of two. */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+	private static final com.sun.management.ThreadMXBean allocBean = allocBean();
+
+	private static com.sun.management.ThreadMXBean allocBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunBean =
+						(com.sun.management.ThreadMXBean) bean;
+				if (sunBean.isThreadAllocatedMemorySupported()) {
+					sunBean.setThreadAllocatedMemoryEnabled(true);
+					return sunBean;
+				}
+			}
+		} catch (Throwable e) {
+			// allocation tracking is optional
+		}
+		return null;
+	}
+
+	private final ConcurrentMap<String, Timing> timings =
+			new ConcurrentHashMap<String, Timing>();
+
+	static int bucketIndex(long value) {
+		if (value < SUB_COUNT)
+			return (int) Math.max(value, 0);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+	}
+
+	/** Representative (midpoint) value of a bucket. */
+	static long bucketValue(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int shift = index / SUB_COUNT - 1;
+		long low = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+		return low + ((1L << shift) >>> 1);
+	}
+
+	static final class Timing implements IHandlerTiming {
+		private final String handler;
+		private final String protocol;
+		private final long[] histogram = new long[BUCKETS];
+		private long calls;
+		private long totalNanos;
+		private long maxNanos;
+		private long allocatedBytes;
+
+		Timing(String handler, String protocol) {
+			this.handler = handler;
+			this.protocol = protocol;
+		}
+
+		synchronized void record(long nanos, long allocated) {
+			++calls;
+			totalNanos += nanos;
+			if (nanos > maxNanos)
+				maxNanos = nanos;
+			if (allocated > 0)
+				allocatedBytes += allocated;
+			++histogram[bucketIndex(nanos)];
+		}
+
+		synchronized void reset() {
+			calls = totalNanos = maxNanos = allocatedBytes = 0;
+			java.util.Arrays.fill(histogram, 0);
+		}
+
+		@Override
+		public String handler() {
+			return handler;
+		}
+
+		@Override
+		public String protocol() {
+			return protocol;
+		}
+
+		@Override
+		public synchronized long calls() {
+			return calls;
+		}
+
+		@Override
+		public synchronized long totalNanos() {
+			return totalNanos;
+		}
+
+		@Override
+		public synchronized long maxNanos() {
+			return maxNanos;
+		}
+
+		@Override
+		public synchronized long allocatedBytes() {
+			return allocatedBytes;
+		}
+
+		@Override
+		public synchronized long percentileNanos(double percentile) {
+			if (calls == 0)
+				return 0;
+			long target = (long) Math.ceil(calls * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += histogram[i];
+				if (seen >= Math.max(target, 1))
+					return Math.min(bucketValue(i), maxNanos);
+			}
+			return maxNanos;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("%s/%s: %d calls, total %.1f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms, alloc %d kB",
+					handler, protocol, calls, totalNanos / 1e6,
+					percentileNanos(50) / 1e6, percentileNanos(99) / 1e6,
+					maxNanos / 1e6, allocatedBytes / 1024);
+		}
+	}
+
+	/** Thread allocated bytes counter for the current thread, or -1 if not supported. */
+	public static long allocatedBytes() {
+		if (allocBean == null)
+			return -1;
+		return allocBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public void record(String handler, String protocol, long nanos, long allocated) {
+		String key = handler + '/' + protocol;
+		Timing t = timings.get(key);
+		if (t == null) {
+			Timing newTiming = new Timing(handler, protocol);
+			t = timings.putIfAbsent(key, newTiming);
+			if (t == null)
+				t = newTiming;
+		}
+		t.record(nanos, allocated);
+	}
+
+	/** Timings sorted by total time spent, descending. */
+	public List<IHandlerTiming> timings() {
+		List<IHandlerTiming> res = new ArrayList<IHandlerTiming>(timings.values());
+		Collections.sort(res, new Comparator<IHandlerTiming>() {
+			@Override
+			public int compare(IHandlerTiming a, IHandlerTiming b) {
+				return Long.compare(b.totalNanos(), a.totalNanos());
+			}
+		});
+		return res;
+	}
+
+	@Override
+	public String[] getSummary() {
+		List<IHandlerTiming> ts = timings();
+		String[] res = new String[ts.size()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = ts.get(i).toString();
+		return res;
+	}
+
+	@Override
+	public long getTotalCalls() {
+		long res = 0;
+		for (Timing t : timings.values())
+			res += t.calls();
+		return res;
+	}
+
+	@Override
+	public long getTotalNanos() {
+		long res = 0;
+		for (Timing t : timings.values())
+			res += t.totalNanos();
+		return res;
+	}
+
+	@Override
+	public void reset() {
+		for (Timing t : timings.values())
+			t.reset();
+	}
+
+	/** Registers (or re-registers) this instance with the platform MBean server. */
+	public void registerMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+}
@@ -0,0 +1,10 @@
+package bothack;
+
+/** JMX view of {@link HandlerStats}. */
+public interface HandlerStatsMBean {
+	/** Per-handler summary lines, slowest (by total time) first. */
+	String[] getSummary();
+	long getTotalCalls();
+	long getTotalNanos();
+	void reset();
+}
@@ -0,0 +1,160 @@
+package bothack;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Internal, emits Java Flight Recorder events for the stages of the
+ * frame-to-action pipeline.
+ * <p>The events are defined at runtime through jdk.jfr.EventFactory, so this
+ * works (as a no-op) on JVMs without JFR support as well.  All events carry the
+ * last known turn, dlvl and chosen action type.</p>
+ */
+public final class JfrEvents {
+	public enum Kind {
+		TERMINAL_READ("TerminalRead", "Terminal Read"),
+		REDRAW("Redraw", "Redraw"),
+		SCRAPER("ScraperTransition", "Scraper Transition"),
+		FULL_FRAME("FullFrame", "Full Frame"),
+		UPDATE_MAP("UpdateMap", "Update Map"),
+		CHOOSE_ACTION("ChooseAction", "Choose Action"),
+		TERMINAL_WRITE("TerminalWrite", "Terminal Write");
+
+		private final String name;
+		private final String label;
+		private Object factory;
+
+		Kind(String name, String label) {
+			this.name = "bothack." + name;
+			this.label = label;
+		}
+	}
+
+	private static final String[] FIELDS = { "turn", "dlvl", "action", "detail", "bytes" };
+
+	private static volatile boolean enabled;
+	private static volatile long turn;
+	private static volatile String dlvl;
+	private static volatile String action;
+
+	private static MethodHandle newEvent;
+	private static MethodHandle begin;
+	private static MethodHandle set;
+	private static MethodHandle commit;
+
+	private JfrEvents() {}
+
+	public static boolean enabled() {
+		return enabled;
+	}
+
+	/**
+	 * Registers the event types with JFR.
+	 * @return false if JFR is not available in this JVM
+	 */
+	public static synchronized boolean enable() {
+		if (enabled)
+			return true;
+		try {
+			ClassLoader cl = ClassLoader.getSystemClassLoader();
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory", true, cl);
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement", true, cl);
+			Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor", true, cl);
+			Class<?> eventClass = Class.forName("jdk.jfr.Event", true, cl);
+			Class<?> nameAnn = Class.forName("jdk.jfr.Name", true, cl);
+			Class<?> labelAnn = Class.forName("jdk.jfr.Label", true, cl);
+			Class<?> categoryAnn = Class.forName("jdk.jfr.Category", true, cl);
+
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodHandle annotation = lookup.findConstructor(annotationClass,
+					MethodType.methodType(void.class, Class.class, Object.class));
+			MethodHandle descriptor = lookup.findConstructor(descriptorClass,
+					MethodType.methodType(void.class, Class.class, String.class));
+			MethodHandle create = lookup.findStatic(factoryClass, "create",
+					MethodType.methodType(factoryClass, List.class, List.class));
+
+			List<Object> fields = new ArrayList<Object>();
+			for (String f : FIELDS)
+				fields.add(descriptor.invoke(f.equals("turn") || f.equals("bytes")
+						? long.class : String.class, f));
+			for (Kind k : Kind.values()) {
+				Object category = Array.newInstance(String.class, 1);
+				Array.set(category, 0, "BotHack");
+				List<Object> annotations = Arrays.asList(
+						annotation.invoke(nameAnn, (Object) k.name),
+						annotation.invoke(labelAnn, (Object) k.label),
+						annotation.invoke(categoryAnn, category));
+				k.factory = create.invoke(annotations, Collections.unmodifiableList(fields));
+			}
+			newEvent = lookup.findVirtual(factoryClass, "newEvent",
+					MethodType.methodType(eventClass)).asType(
+							MethodType.methodType(Object.class, Object.class));
+			begin = lookup.findVirtual(eventClass, "begin",
+					MethodType.methodType(void.class)).asType(
+							MethodType.methodType(void.class, Object.class));
+			set = lookup.findVirtual(eventClass, "set",
+					MethodType.methodType(void.class, int.class, Object.class)).asType(
+							MethodType.methodType(void.class, Object.class, int.class, Object.class));
+			commit = lookup.findVirtual(eventClass, "commit",
+					MethodType.methodType(void.class)).asType(
+							MethodType.methodType(void.class, Object.class));
+			enabled = true;
+		} catch (Throwable e) {
+			enabled = false;
+		}
+		return enabled;
+	}
+
+	/** Sets the game context attached to subsequent events. */
+	public static void setContext(long turn, String dlvl) {
+		JfrEvents.turn = turn;
+		JfrEvents.dlvl = dlvl;
+	}
+
+	public static void setAction(String action) {
+		JfrEvents.action = action;
+	}
+
+	/** Starts timing an event, returns null if events are disabled. */
+	public static Object begin(Kind kind) {
+		if (!enabled)
+			return null;
+		try {
+			Object event = newEvent.invokeExact(kind.factory);
+			begin.invokeExact(event);
+			return event;
+		} catch (Throwable e) {
+			enabled = false;
+			return null;
+		}
+	}
+
+	public static void commit(Object event) {
+		commit(event, null, 0L);
+	}
+
+	public static void commit(Object event, String detail) {
+		commit(event, detail, 0L);
+	}
+
+	public static void commit(Object event, String detail, long bytes) {
+		if (event == null)
+			return;
+		try {
+			set.invokeExact(event, 0, (Object) turn);
+			set.invokeExact(event, 1, (Object) dlvl);
+			set.invokeExact(event, 2, (Object) action);
+			set.invokeExact(event, 3, (Object) detail);
+			set.invokeExact(event, 4, (Object) bytes);
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			enabled = false;
+		}
+	}
+}
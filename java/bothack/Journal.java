@@ -0,0 +1,183 @@
+package bothack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Internal, append-only binary journal of semantic game events.
+ * <p>Producers encode an event and put it into a lock-free bounded ring
+ * buffer, a single background thread copies the records into memory-mapped
+ * segment files.  When the ring is full the event is dropped (and counted)
+ * rather than blocking the bot.  If writing a segment fails the error is
+ * logged and the buffered and all later events are dropped and counted.</p>
+ * <p>A segment starts with {@link #MAGIC}, followed by records:
+ * int length of the rest of the record, byte {@link Type}, long
+ * System.currentTimeMillis, int game turn and the string fields, each as an
+ * int byte length and UTF-8 bytes.  A zero length marks the end of the
+ * written data.  See {@link JournalReader}.</p>
+ */
+public final class Journal {
+	private static final Logger LOG = Logger.getLogger(Journal.class);
+	public static final int MAGIC = 0x424a4c31; // "BJL1"
+	public static final String SUFFIX = ".bjl";
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final int HEADER_BYTES = 1 + 8 + 4;
+
+	public enum Type {
+		GAME_START, GAME_END, ACTION, PROMPT, MESSAGE, DLVL_CHANGE, DEATH;
+
+		private static final Type[] VALUES = values();
+
+		static Type of(int code) {
+			return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+		}
+	}
+
+	private final File dir;
+	private final String prefix;
+	private final int segmentBytes;
+
+	private final AtomicReferenceArray<byte[]> ring;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Thread writer;
+	private volatile boolean closed;
+	private volatile boolean failed;
+
+	private int segment;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * @param ringSize number of buffered events, rounded up to a power of two
+	 */
+	public Journal(File dir, int segmentBytes, int ringSize) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create journal directory " + dir);
+		this.dir = dir;
+		this.prefix = "journal-" + System.currentTimeMillis();
+		this.segmentBytes = segmentBytes;
+		int size = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+		this.ring = new AtomicReferenceArray<byte[]>(size);
+		this.mask = size - 1;
+		nextSegment();
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "bothack-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	static byte[] encode(Type type, long time, int turn, String... fields) {
+		byte[][] encoded = new byte[fields.length][];
+		int length = HEADER_BYTES;
+		for (int i = 0; i < fields.length; i++) {
+			encoded[i] = String.valueOf(fields[i]).getBytes(UTF8);
+			length += 4 + encoded[i].length;
+		}
+		ByteBuffer res = ByteBuffer.allocate(4 + length);
+		res.putInt(length).put((byte) type.ordinal()).putLong(time).putInt(turn);
+		for (byte[] field : encoded)
+			res.putInt(field.length).put(field);
+		return res.array();
+	}
+
+	/** @return false if the event was dropped (the journal is full or closed) */
+	public boolean append(Type type, int turn, String... fields) {
+		if (closed) {
+			if (failed)
+				dropped.incrementAndGet();
+			return false;
+		}
+		byte[] record = encode(type, System.currentTimeMillis(), turn, fields);
+		if (record.length + 8 > segmentBytes) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		long seq;
+		do {
+			seq = head.get();
+			if (seq - tail >= ring.length()) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while (!head.compareAndSet(seq, seq + 1));
+		ring.set((int) seq & mask, record);
+		return true;
+	}
+
+	/** Events lost because the ring buffer was full or the writer failed. */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	private void drainLoop() {
+		try {
+			while (true) {
+				if (!drain()) {
+					if (closed && tail == head.get())
+						break;
+					LockSupport.parkNanos(1000000);
+				}
+			}
+			buffer.force();
+			file.close();
+		} catch (IOException e) {
+			failed = true;
+			closed = true;
+			dropped.addAndGet(head.get() - tail);
+			LOG.error("journal writer failed, dropping further events", e);
+		}
+	}
+
+	/** Writes out the published records, returns false if there were none. */
+	private boolean drain() throws IOException {
+		boolean any = false;
+		while (true) {
+			int slot = (int) tail & mask;
+			byte[] record = ring.get(slot);
+			if (record == null) // empty or claimed but not yet published
+				return any;
+			if (buffer.remaining() < record.length + 4)
+				nextSegment();
+			buffer.put(record);
+			ring.set(slot, null);
+			tail = tail + 1;
+			any = true;
+		}
+	}
+
+	private void nextSegment() throws IOException {
+		if (file != null) {
+			buffer.force();
+			file.close();
+		}
+		File f = new File(dir, String.format("%s-%04d%s", prefix, segment++, SUFFIX));
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(segmentBytes);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		buffer.putInt(MAGIC);
+	}
+
+	/** Writes out the buffered events and closes the segment. */
+	public void close() throws InterruptedException {
+		closed = true;
+		writer.join();
+	}
+}
@@ -0,0 +1,178 @@
+package bothack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Internal, reads the segments written by {@link Journal}.
+ * <p>Command line usage:
+ * <pre>java -cp bothack.jar bothack.JournalReader [options] file-or-dir...
+ *   --type ACTION,DEATH  only events of the given types
+ *   --grep regex         only events with a field matching the regex
+ *   --turns from-to      only events within the turn range
+ *   --json               print JSON lines instead of tab-separated text</pre>
+ * Directories are expanded to their journal segments in order of creation.</p>
+ */
+public final class JournalReader {
+	public static final class Event {
+		public final Journal.Type type;
+		public final long time;
+		public final int turn;
+		public final String[] fields;
+
+		Event(Journal.Type type, long time, int turn, String[] fields) {
+			this.type = type;
+			this.time = time;
+			this.turn = turn;
+			this.fields = fields;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder res = new StringBuilder();
+			res.append(time).append('\t').append(turn).append('\t').append(type);
+			for (String f : fields)
+				res.append('\t').append(f.replace("\n", "\\n").replace("\t", "\\t"));
+			return res.toString();
+		}
+
+		public String toJson() {
+			StringBuilder res = new StringBuilder();
+			res.append("{\"time\":").append(time)
+					.append(",\"turn\":").append(turn)
+					.append(",\"type\":\"").append(type).append("\",\"fields\":[");
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0)
+					res.append(',');
+				jsonString(res, fields[i]);
+			}
+			return res.append("]}").toString();
+		}
+	}
+
+	private static void jsonString(StringBuilder res, String s) {
+		res.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				res.append('\\').append(c);
+			else if (c < 0x20)
+				res.append(String.format("\\u%04x", (int) c));
+			else
+				res.append(c);
+		}
+		res.append('"');
+	}
+
+	private JournalReader() {}
+
+	/** All events of a segment file in the order they were written. */
+	public static List<Event> read(File segment) throws IOException {
+		List<Event> res = new ArrayList<Event>();
+		FileInputStream in = new FileInputStream(segment);
+		try {
+			FileChannel ch = in.getChannel();
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if (buf.remaining() < 4 || buf.getInt() != Journal.MAGIC)
+				throw new IOException("Not a journal segment: " + segment);
+			while (buf.remaining() >= 4) {
+				int length = buf.getInt();
+				if (length < Journal.HEADER_BYTES || length > buf.remaining())
+					break;
+				int end = buf.position() + length;
+				Journal.Type type = Journal.Type.of(buf.get());
+				long time = buf.getLong();
+				int turn = buf.getInt();
+				List<String> fields = new ArrayList<String>();
+				while (buf.position() < end) {
+					byte[] field = new byte[buf.getInt()];
+					buf.get(field);
+					fields.add(new String(field, Journal.UTF8));
+				}
+				if (type != null)
+					res.add(new Event(type, time, turn, fields.toArray(new String[fields.size()])));
+			}
+		} finally {
+			in.close();
+		}
+		return res;
+	}
+
+	/** Segment files of the given files or directories, sorted by name. */
+	public static List<File> segments(String... paths) {
+		List<File> res = new ArrayList<File>();
+		for (String path : paths) {
+			File f = new File(path);
+			File[] files = f.isDirectory() ? f.listFiles() : new File[] { f };
+			Arrays.sort(files);
+			for (File file : files)
+				if (file.getName().endsWith(Journal.SUFFIX) || !f.isDirectory())
+					res.add(file);
+		}
+		return res;
+	}
+
+	private static void usage() {
+		System.err.println("usage: bothack.JournalReader [--type T1,T2] [--grep regex] "
+				+ "[--turns from-to] [--json] file-or-dir...");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws IOException {
+		EnumSet<Journal.Type> types = EnumSet.allOf(Journal.Type.class);
+		Pattern grep = null;
+		int fromTurn = Integer.MIN_VALUE;
+		int toTurn = Integer.MAX_VALUE;
+		boolean json = false;
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--json"))
+				json = true;
+			else if (arg.startsWith("--") && i + 1 >= args.length)
+				usage();
+			else if (arg.equals("--type")) {
+				types.clear();
+				for (String t : args[++i].split(","))
+					types.add(Journal.Type.valueOf(t.trim().toUpperCase()));
+			} else if (arg.equals("--grep"))
+				grep = Pattern.compile(args[++i]);
+			else if (arg.equals("--turns")) {
+				String[] range = args[++i].split("-", 2);
+				if (!range[0].isEmpty())
+					fromTurn = Integer.parseInt(range[0]);
+				if (range.length > 1 && !range[1].isEmpty())
+					toTurn = Integer.parseInt(range[1]);
+			} else if (arg.startsWith("--"))
+				usage();
+			else
+				paths.add(arg);
+		}
+		if (paths.isEmpty())
+			usage();
+		PrintStream out = System.out;
+		for (File segment : segments(paths.toArray(new String[paths.size()]))) {
+			for (Event e : read(segment)) {
+				if (!types.contains(e.type) || e.turn < fromTurn || e.turn > toTurn)
+					continue;
+				if (grep != null) {
+					boolean found = false;
+					for (String f : e.fields)
+						found |= grep.matcher(f).find();
+					if (!found)
+						continue;
+				}
+				out.println(json ? e.toJson() : e.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package bothack;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.apache.log4j.Logger;
+
+import de.mud.jta.FilterPlugin;
+import de.mud.jta.Plugin;
+import de.mud.jta.PluginBus;
+import de.mud.jta.event.OnlineStatus;
+import de.mud.jta.event.SocketListener;
+
+/**
+ * Internal, a JTA data source plugin for telnet connections, replaces
+ * de.mud.jta.plugin.Socket.
+ * <p>Uses a SocketChannel with TCP_NODELAY (the bot sends lots of tiny writes
+ * that would otherwise get delayed by Nagle's algorithm) and a direct read
+ * buffer.  write() only queues the data, a writer thread of the connection
+ * waits up to COALESCE_MILLIS after the oldest queued write and sends
+ * everything queued by then in a single gathering write.  Write errors are
+ * logged and close the connection.  Keeps simple write latency statistics
+ * (time from write() call until the data is handed to the kernel).</p>
+ */
+public class NioSocket extends Plugin implements FilterPlugin, SocketListener {
+	private static final Logger LOG = Logger.getLogger(NioSocket.class);
+	private static final int BUFFER_SIZE = 8192;
+	/** How long the writer waits for more writes to send them together. */
+	private static final long COALESCE_MILLIS = 1;
+
+	private volatile SocketChannel channel;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private final Queue<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	private final Queue<Long> pendingSince = new ArrayDeque<Long>();
+	private Writer writer;
+
+	private long writes;
+	private long writeCalls;
+	private long bytesWritten;
+	private long totalLatencyNanos;
+	private long maxLatencyNanos;
+
+	/** Sends the queued writes of one connection. */
+	private final class Writer extends Thread {
+		private final SocketChannel ch;
+		/** Set on disconnect, the writer sends what is queued and exits. */
+		private boolean closing;
+
+		Writer(SocketChannel ch) {
+			super("NioSocket writer");
+			this.ch = ch;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					ByteBuffer[] bufs;
+					Long[] since;
+					synchronized (pending) {
+						while (pending.isEmpty() && !closing)
+							pending.wait();
+						if (pending.isEmpty())
+							return;
+						long wait;
+						while (!closing && (wait = COALESCE_MILLIS
+								- (System.nanoTime() - pendingSince.peek()) / 1000000) > 0)
+							pending.wait(wait);
+						bufs = pending.toArray(new ByteBuffer[pending.size()]);
+						since = pendingSince.toArray(new Long[pendingSince.size()]);
+						pending.clear();
+						pendingSince.clear();
+					}
+					long n = 0;
+					while (bufs[bufs.length - 1].hasRemaining())
+						n += ch.write(bufs);
+					long now = System.nanoTime();
+					synchronized (pending) {
+						++writes;
+						bytesWritten += n;
+						for (Long t : since) {
+							long latency = now - t;
+							totalLatencyNanos += latency;
+							if (latency > maxLatencyNanos)
+								maxLatencyNanos = latency;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// disconnected, nothing more to send
+			} catch (IOException e) {
+				if (channel == ch) {
+					LOG.error("write to the socket failed, disconnecting", e);
+					try {
+						disconnect();
+					} catch (IOException e2) {
+						LOG.error("closing the socket failed", e2);
+					}
+				}
+			}
+		}
+	}
+
+	public NioSocket(PluginBus bus, String id) {
+		super(bus, id);
+		bus.registerPluginListener(this);
+		readBuffer.limit(0);
+	}
+
+	@Override
+	public void connect(String host, int port) throws IOException {
+		if (host == null)
+			return;
+		SocketChannel ch = SocketChannel.open();
+		try {
+			ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			ch.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+		synchronized (readBuffer) {
+			readBuffer.clear().limit(0);
+		}
+		synchronized (pending) {
+			pending.clear();
+			pendingSince.clear();
+			writer = new Writer(ch);
+			writer.start();
+		}
+		channel = ch;
+		bus.broadcast(new OnlineStatus(true));
+	}
+
+	@Override
+	public void disconnect() throws IOException {
+		SocketChannel ch = channel;
+		channel = null;
+		Writer w;
+		synchronized (pending) {
+			w = writer;
+			writer = null;
+			if (w != null) {
+				w.closing = true;
+				pending.notifyAll();
+			}
+		}
+		if (w != null && w != Thread.currentThread()) {
+			try {
+				w.join(1000); // let it send what was written before
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			w.interrupt();
+		}
+		bus.broadcast(new OnlineStatus(false));
+		if (ch != null)
+			ch.close();
+	}
+
+	@Override
+	public void setFilterSource(FilterPlugin plugin) {
+		// the channel is the source
+	}
+
+	@Override
+	public FilterPlugin getFilterSource() {
+		return null;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		SocketChannel ch = channel;
+		if (ch == null)
+			return -1;
+		synchronized (readBuffer) {
+			if (!readBuffer.hasRemaining()) {
+				readBuffer.clear();
+				int n = ch.read(readBuffer);
+				readBuffer.flip();
+				if (n < 0) {
+					disconnect();
+					return -1;
+				}
+			}
+			int n = Math.min(b.length, readBuffer.remaining());
+			readBuffer.get(b, 0, n);
+			return n;
+		}
+	}
+
+	/** Queues the data for the writer thread, the caller may reuse b. */
+	@Override
+	public void write(byte[] b) throws IOException {
+		if (channel == null || b.length == 0)
+			return;
+		synchronized (pending) {
+			if (writer == null)
+				return;
+			pending.add(ByteBuffer.wrap(b.clone()));
+			pendingSince.add(System.nanoTime());
+			++writeCalls;
+			if (pending.size() == 1)
+				pending.notifyAll();
+		}
+	}
+
+	/** Number of write() calls. */
+	public long getWriteCalls() {
+		synchronized (pending) {
+			return writeCalls;
+		}
+	}
+
+	/** Number of (gathering) writes to the channel. */
+	public long getChannelWrites() {
+		synchronized (pending) {
+			return writes;
+		}
+	}
+
+	public long getMaxLatencyNanos() {
+		synchronized (pending) {
+			return maxLatencyNanos;
+		}
+	}
+
+	public long getTotalLatencyNanos() {
+		synchronized (pending) {
+			return totalLatencyNanos;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (pending) {
+			return String.format("%d writes (%d channel writes, %d bytes), latency avg %.3f ms, max %.3f ms",
+					writeCalls, writes, bytesWritten,
+					writeCalls == 0 ? 0.0 : totalLatencyNanos / 1e6 / writeCalls,
+					maxLatencyNanos / 1e6);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package bothack;
+
+/**
+ * Internal, room flood fill over row bitmasks.
+ * <p>A mask has one bit per tile of the 80x21 map, two longs per row: element
+ * 2*(y-1) holds x 0..63 of row y, element 2*(y-1)+1 holds x 64..79 in its
+ * low 16 bits.  All operations are done on whole rows at once.</p>
+ */
+public final class RoomFill {
+	public static final int ROWS = 21;
+	public static final int COLS = 80;
+
+	private static final long HI_MASK = (1L << (COLS - 64)) - 1;
+
+	private RoomFill() {}
+
+	public static long[] newMask() {
+		return new long[2 * ROWS];
+	}
+
+	public static void set(long[] mask, int x, int y) {
+		int i = 2 * (y - 1) + (x >>> 6);
+		mask[i] |= 1L << (x & 63);
+	}
+
+	public static boolean isSet(long[] mask, int x, int y) {
+		int i = 2 * (y - 1) + (x >>> 6);
+		return (mask[i] & (1L << (x & 63))) != 0;
+	}
+
+	/** bit x of the result is bit x-1 of the row (left neighbor) */
+	private static long leftLo(long lo) {
+		return lo << 1;
+	}
+
+	private static long leftHi(long lo, long hi) {
+		return ((hi << 1) | (lo >>> 63)) & HI_MASK;
+	}
+
+	/** bit x of the result is bit x+1 of the row (right neighbor) */
+	private static long rightLo(long lo, long hi) {
+		return (lo >>> 1) | (hi << 63);
+	}
+
+	private static long rightHi(long hi) {
+		return hi >>> 1;
+	}
+
+	/**
+	 * Tiles that are not boundary but look like a missing piece of one: fewer
+	 * than 3 boundary neighbors with at least one of them vertical and one
+	 * horizontal, or boundary tiles on both sides vertically or horizontally
+	 * (sides outside the map count as boundary).
+	 */
+	public static long[] missingWalls(long[] boundary) {
+		long[] res = newMask();
+		long[] nbrs = new long[8];
+		for (int r = 0; r < ROWS; r++) {
+			for (int w = 0; w < 2; w++) {
+				long c = boundary[2 * r + w];
+				long cLo = boundary[2 * r], cHi = boundary[2 * r + 1];
+				long uLo = 0, uHi = 0, dLo = 0, dHi = 0;
+				if (r > 0) {
+					uLo = boundary[2 * r - 2];
+					uHi = boundary[2 * r - 1];
+				}
+				if (r < ROWS - 1) {
+					dLo = boundary[2 * r + 2];
+					dHi = boundary[2 * r + 3];
+				}
+				long u = w == 0 ? uLo : uHi;
+				long d = w == 0 ? dLo : dHi;
+				long ul = w == 0 ? leftLo(uLo) : leftHi(uLo, uHi);
+				long ur = w == 0 ? rightLo(uLo, uHi) : rightHi(uHi);
+				long dl = w == 0 ? leftLo(dLo) : leftHi(dLo, dHi);
+				long dr = w == 0 ? rightLo(dLo, dHi) : rightHi(dHi);
+				long l = w == 0 ? leftLo(cLo) : leftHi(cLo, cHi);
+				long rt = w == 0 ? rightLo(cLo, cHi) : rightHi(cHi);
+
+				nbrs[0] = u; nbrs[1] = d; nbrs[2] = ul; nbrs[3] = ur;
+				nbrs[4] = dl; nbrs[5] = dr; nbrs[6] = l; nbrs[7] = rt;
+				// saturating bit-sliced counter of boundary neighbors (0..3)
+				long c0 = 0, c1 = 0;
+				for (long n : nbrs) {
+					long sat = c0 & c1;
+					long carry = c0 & n;
+					c0 = (c0 ^ n) | sat;
+					c1 |= carry;
+				}
+				long fewerThan3 = ~(c0 & c1);
+
+				long uEdge = r == 0 ? -1L : 0;
+				long dEdge = r == ROWS - 1 ? -1L : 0;
+				long lEdge = w == 0 ? 1L : 0;
+				long rEdge = w == 1 ? 1L << (COLS - 64 - 1) : 0;
+				long allVert = (u | uEdge) & (d | dEdge);
+				long allHoriz = (l | lEdge) & (rt | rEdge);
+				long missing = (fewerThan3 & (u | d) & (l | rt)) | allVert | allHoriz;
+				res[2 * r + w] = missing & ~c & (w == 0 ? -1L : HI_MASK);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the mask of tiles reachable from the seeds by 8-way steps that
+	 * only spread from tiles not in stop to tiles in allowed (seeds are always
+	 * included).
+	 */
+	public static long[] fill(long[] seeds, long[] stop, long[] allowed) {
+		long[] reached = seeds.clone();
+		long[] spread = newMask();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int r = 0; r < ROWS; r++) {
+				long lo = reached[2 * r] & ~stop[2 * r];
+				long hi = reached[2 * r + 1] & ~stop[2 * r + 1];
+				spread[2 * r] = lo | leftLo(lo) | rightLo(lo, hi);
+				spread[2 * r + 1] = hi | leftHi(lo, hi) | rightHi(hi);
+			}
+			for (int i = 0; i < 2 * ROWS; i++) {
+				long n = spread[i];
+				if (i >= 2)
+					n |= spread[i - 2];
+				if (i < 2 * ROWS - 2)
+					n |= spread[i + 2];
+				n = (reached[i] | (n & allowed[i])) & (i % 2 == 0 ? -1L : HI_MASK);
+				if (n != reached[i]) {
+					reached[i] = n;
+					changed = true;
+				}
+			}
+		}
+		return reached;
+	}
+
+	/**
+	 * Bounding box of the mask as {minX, minY, maxX, maxY} (y in map
+	 * coordinates starting at 1), null if the mask is empty.
+	 */
+	public static int[] bounds(long[] mask) {
+		int minX = COLS, minY = 0, maxX = -1, maxY = 0;
+		for (int r = 0; r < ROWS; r++) {
+			long lo = mask[2 * r], hi = mask[2 * r + 1];
+			if ((lo | hi) == 0)
+				continue;
+			if (minY == 0)
+				minY = r + 1;
+			maxY = r + 1;
+			int first = lo != 0 ? Long.numberOfTrailingZeros(lo)
+					: 64 + Long.numberOfTrailingZeros(hi);
+			int last = hi != 0 ? 127 - Long.numberOfLeadingZeros(hi)
+					: 63 - Long.numberOfLeadingZeros(lo);
+			minX = Math.min(minX, first);
+			maxX = Math.max(maxX, last);
+		}
+		return maxX < 0 ? null : new int[] { minX, minY, maxX, maxY };
+	}
+}
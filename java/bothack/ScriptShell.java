@@ -0,0 +1,137 @@
+package bothack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import de.mud.jta.FilterPlugin;
+import de.mud.jta.Plugin;
+import de.mud.jta.PluginBus;
+import de.mud.jta.PluginConfig;
+import de.mud.jta.event.ConfigurationListener;
+import de.mud.jta.event.OnlineStatus;
+import de.mud.jta.event.SocketListener;
+
+/**
+ * Internal, a JTA data source plugin running a local command in a
+ * pseudo-terminal without the native jtapty library needed by
+ * de.mud.jta.plugin.Shell.
+ * <p>The pty is allocated by the util-linux script(1) utility, started with a
+ * ProcessBuilder.  The terminal is set to 80x24 xterm.  The process is
+ * destroyed and reaped on disconnect or when its output ends.</p>
+ */
+public class ScriptShell extends Plugin implements FilterPlugin, SocketListener {
+	private String command = "/bin/sh";
+	private String script = "script";
+
+	private volatile Process process;
+	private InputStream in;
+	private OutputStream out;
+
+	public ScriptShell(PluginBus bus, final String id) {
+		super(bus, id);
+		bus.registerPluginListener(this);
+		bus.registerPluginListener(new ConfigurationListener() {
+			@Override
+			public void setConfiguration(PluginConfig cfg) {
+				String cmd = cfg.getProperty("Shell", id, "command");
+				if (cmd != null)
+					command = cmd;
+				String scriptCmd = cfg.getProperty("Shell", id, "script");
+				if (scriptCmd != null)
+					script = scriptCmd;
+			}
+		});
+	}
+
+	@Override
+	public void connect(String host, int port) throws IOException {
+		// host and port are ignored
+		ProcessBuilder pb = new ProcessBuilder(Arrays.asList(script, "-q", "-f",
+				"-e", "-c", "stty rows 24 cols 80; exec " + command, "/dev/null"));
+		pb.environment().put("TERM", "xterm");
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		in = p.getInputStream();
+		out = p.getOutputStream();
+		process = p;
+		bus.broadcast(new OnlineStatus(true));
+	}
+
+	@Override
+	public void disconnect() throws IOException {
+		if (close())
+			bus.broadcast(new OnlineStatus(false));
+	}
+
+	/** Destroys and reaps the process, returns false if it was not running. */
+	private synchronized boolean close() {
+		Process p = process;
+		if (p == null)
+			return false;
+		process = null;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		p.destroy();
+		try {
+			if (!waitFor(p, 5000))
+				error("process did not terminate");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		return true;
+	}
+
+	private static boolean waitFor(Process p, long millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (true) {
+			try {
+				p.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				if (System.nanoTime() > deadline)
+					return false;
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	@Override
+	public void setFilterSource(FilterPlugin plugin) {
+		// the process is the source
+	}
+
+	@Override
+	public FilterPlugin getFilterSource() {
+		return null;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		InputStream is = in;
+		if (process == null || is == null)
+			return -1;
+		int n = is.read(b);
+		if (n < 0)
+			disconnect();
+		return n;
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		if (process == null)
+			return;
+		out.write(b);
+		out.flush();
+	}
+}
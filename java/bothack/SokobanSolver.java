@@ -0,0 +1,285 @@
+package bothack;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Internal, a bounded best-first Sokoban solver for layouts the hard-coded
+ * solutions don't cover.
+ * <p>Cells are indexed like the level grids: (y-1)*80+x.  Boulders are only
+ * pushed orthogonally and the player is assumed to move orthogonally too,
+ * so found plans stay valid for the real (8-way) movement.  A boulder pushed
+ * into a hole fills it.  The goal is filling all the holes.</p>
+ * <p>Visited states (boulders, remaining holes, player area) are kept in a
+ * transposition table of Zobrist hashes.  States with fewer boulders that
+ * can still be pushed into some remaining hole than there are holes left are
+ * pruned as deadlocks.</p>
+ */
+public final class SokobanSolver {
+	private static final int W = 80;
+	private static final int H = 21;
+	private static final int N = W * H;
+	private static final int[] DX = { 0, 0, -1, 1 };
+	private static final int[] DY = { -1, 1, 0, 0 };
+	private static final int[] DELTA = { -W, W, -1, 1 };
+
+	private static final long[] Z_BOULDER = new long[N];
+	private static final long[] Z_PLAYER = new long[N];
+	private static final long[] Z_HOLE = new long[64];
+
+	static {
+		Random rnd = new Random(1979);
+		for (int i = 0; i < N; i++) {
+			Z_BOULDER[i] = rnd.nextLong();
+			Z_PLAYER[i] = rnd.nextLong();
+		}
+		for (int i = 0; i < Z_HOLE.length; i++)
+			Z_HOLE[i] = rnd.nextLong();
+	}
+
+	private final boolean[] open;
+	private final int[] holes;
+	private final int[] holeIndex;
+	/** holes (bits of indexes into holes) a boulder on the cell can be pushed into */
+	private final long[] reachesHoles;
+
+	private static final class Node implements Comparable<Node> {
+		final int[] boulders; // sorted
+		final long holes; // remaining
+		final int player;
+		final int g;
+		final int f;
+		final Node parent;
+		final int pushFrom;
+		final int pushDir;
+
+		Node(int[] boulders, long holes, int player, int g, int f, Node parent,
+				int pushFrom, int pushDir) {
+			this.boulders = boulders;
+			this.holes = holes;
+			this.player = player;
+			this.g = g;
+			this.f = f;
+			this.parent = parent;
+			this.pushFrom = pushFrom;
+			this.pushDir = pushDir;
+		}
+
+		@Override
+		public int compareTo(Node o) {
+			return f != o.f ? Integer.compare(f, o.f) : Integer.compare(o.g, g);
+		}
+	}
+
+	/**
+	 * @param open cells passable by the player and boulders (floor, boulder
+	 *     positions), not including the holes
+	 * @param holes cells of the holes (and pits) to fill, at most 64
+	 */
+	public SokobanSolver(boolean[] open, int[] holes) {
+		if (open.length != N)
+			throw new IllegalArgumentException("expected " + N + " cells");
+		if (holes.length > 64)
+			throw new IllegalArgumentException("too many holes");
+		this.open = open.clone();
+		this.holes = holes.clone();
+		this.holeIndex = new int[N];
+		Arrays.fill(holeIndex, -1);
+		for (int i = 0; i < holes.length; i++)
+			holeIndex[holes[i]] = i;
+		this.reachesHoles = new long[N];
+		for (int i = 0; i < holes.length; i++)
+			markReaching(i);
+	}
+
+	private boolean passable(int cell) {
+		return open[cell] || holeIndex[cell] >= 0;
+	}
+
+	private static int step(int cell, int dir) {
+		int x = cell % W + DX[dir];
+		int y = cell / W + DY[dir];
+		return x < 0 || x >= W || y < 0 || y >= H ? -1 : cell + DELTA[dir];
+	}
+
+	/** Reverse search (pulls) from the hole, optimistically treating all holes as floor. */
+	private void markReaching(int hole) {
+		long bit = 1L << hole;
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		reachesHoles[holes[hole]] |= bit;
+		queue.add(holes[hole]);
+		while (!queue.isEmpty()) {
+			int to = queue.poll();
+			for (int d = 0; d < 4; d++) {
+				int from = step(to, d ^ 1);
+				int player = from < 0 ? -1 : step(from, d ^ 1);
+				if (player < 0 || !passable(from) || !passable(player)
+						|| (reachesHoles[from] & bit) != 0)
+					continue;
+				reachesHoles[from] |= bit;
+				queue.add(from);
+			}
+		}
+	}
+
+	/** Number of boulders that can still be pushed into one of the remaining holes. */
+	private int liveBoulders(int[] boulders, long remaining) {
+		int n = 0;
+		for (int b : boulders)
+			if ((reachesHoles[b] & remaining) != 0)
+				++n;
+		return n;
+	}
+
+	private long hash(int[] boulders, long remaining, int player) {
+		long h = Z_PLAYER[player];
+		for (int b : boulders)
+			h ^= Z_BOULDER[b];
+		for (int i = 0; i < holes.length; i++)
+			if ((remaining & (1L << i)) != 0)
+				h ^= Z_HOLE[i];
+		return h;
+	}
+
+	/** Sum of distances of the remaining holes to greedily assigned distinct boulders. */
+	private int heuristic(int[] boulders, long remaining) {
+		int h = 0;
+		long used = 0;
+		for (int i = 0; i < holes.length; i++) {
+			if ((remaining & (1L << i)) == 0)
+				continue;
+			int hx = holes[i] % W, hy = holes[i] / W;
+			int best = Integer.MAX_VALUE, bestIdx = -1;
+			for (int j = 0; j < boulders.length && j < 64; j++) {
+				if ((used & (1L << j)) != 0)
+					continue;
+				int b = boulders[j];
+				int dist = Math.abs(b % W - hx) + Math.abs(b / W - hy);
+				if (dist < best) {
+					best = dist;
+					bestIdx = j;
+				}
+			}
+			if (bestIdx < 0)
+				return h;
+			used |= 1L << bestIdx;
+			h += best;
+		}
+		return h;
+	}
+
+	/**
+	 * Marks cells reachable by the player in reach (reusing the array),
+	 * returns the smallest one as the normalized player position.
+	 */
+	private int reach(boolean[] reach, boolean[] boulder, long remaining,
+			int player, int[] queue) {
+		Arrays.fill(reach, false);
+		int head = 0, tail = 0, min = player;
+		reach[player] = true;
+		queue[tail++] = player;
+		while (head < tail) {
+			int c = queue[head++];
+			if (c < min)
+				min = c;
+			for (int d = 0; d < 4; d++) {
+				int n = step(c, d);
+				if (n < 0 || reach[n] || boulder[n])
+					continue;
+				int hi = holeIndex[n];
+				if (hi >= 0 ? (remaining & (1L << hi)) != 0 : !open[n])
+					continue;
+				reach[n] = true;
+				queue[tail++] = n;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Searches for a sequence of pushes filling all holes.
+	 * @return pairs of (boulder cell, direction index) – directions are N, S,
+	 *     W, E – or null if no solution was found within the time or node
+	 *     limit (or the thread was interrupted)
+	 */
+	public int[] solve(int[] boulders, int player, long timeoutMillis, int maxNodes) {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		int[] start = boulders.clone();
+		Arrays.sort(start);
+		long allHoles = holes.length == 64 ? -1L : (1L << holes.length) - 1;
+		if (liveBoulders(start, allHoles) < holes.length)
+			return null;
+		PriorityQueue<Node> queue = new PriorityQueue<Node>();
+		queue.add(new Node(start, allHoles, player, 0,
+				2 * heuristic(start, allHoles), null, -1, -1));
+		Set<Long> visited = new HashSet<Long>();
+		boolean[] boulder = new boolean[N];
+		boolean[] reach = new boolean[N];
+		int[] bfs = new int[N];
+		int expanded = 0;
+		while (!queue.isEmpty()) {
+			if ((++expanded & 255) == 0 && (System.nanoTime() > deadline
+					|| Thread.currentThread().isInterrupted()))
+				return null;
+			if (expanded > maxNodes)
+				return null;
+			Node node = queue.poll();
+			if (node.holes == 0)
+				return plan(node);
+			for (int b : node.boulders)
+				boulder[b] = true;
+			int normalized = reach(reach, boulder, node.holes, node.player, bfs);
+			if (visited.add(hash(node.boulders, node.holes, normalized))) {
+				for (int i = 0; i < node.boulders.length; i++) {
+					int b = node.boulders[i];
+					for (int d = 0; d < 4; d++) {
+						int from = step(b, d ^ 1);
+						int to = step(b, d);
+						if (from < 0 || to < 0 || !reach[from] || boulder[to])
+							continue;
+						int hi = holeIndex[to];
+						boolean fills = hi >= 0 && (node.holes & (1L << hi)) != 0;
+						// filled holes are floor
+						if (!fills && !open[to] && hi < 0)
+							continue;
+						int[] nb;
+						long nh = node.holes;
+						if (fills) {
+							nb = new int[node.boulders.length - 1];
+							System.arraycopy(node.boulders, 0, nb, 0, i);
+							System.arraycopy(node.boulders, i + 1, nb, i, nb.length - i);
+							nh &= ~(1L << hi);
+						} else {
+							nb = node.boulders.clone();
+							nb[i] = to;
+							Arrays.sort(nb);
+						}
+						if (liveBoulders(nb, nh) < Long.bitCount(nh))
+							continue; // deadlock
+						int g = node.g + 1;
+						queue.add(new Node(nb, nh, b, g, g + 2 * heuristic(nb, nh),
+								node, b, d));
+					}
+				}
+			}
+			for (int b : node.boulders)
+				boulder[b] = false;
+		}
+		return null;
+	}
+
+	private static int[] plan(Node node) {
+		int n = node.g;
+		int[] res = new int[2 * n];
+		for (Node cur = node; cur.parent != null; cur = cur.parent) {
+			--n;
+			res[2 * n] = cur.pushFrom;
+			res[2 * n + 1] = cur.pushDir;
+		}
+		return res;
+	}
+}
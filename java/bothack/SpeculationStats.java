@@ -0,0 +1,76 @@
+package bothack;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Internal, hit/miss counters of the speculative action computation. */
+public final class SpeculationStats implements SpeculationStatsMBean {
+	public static final String OBJECT_NAME = "bothack:type=SpeculationStats";
+
+	private long hits;
+	private long misses;
+	private long unpredicted;
+	private long savedNanos;
+
+	public synchronized void hit(long nanos) {
+		++hits;
+		savedNanos += nanos;
+	}
+
+	public synchronized void miss() {
+		++misses;
+	}
+
+	public synchronized void unpredicted() {
+		++unpredicted;
+	}
+
+	@Override
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	@Override
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized long getUnpredicted() {
+		return unpredicted;
+	}
+
+	@Override
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+	}
+
+	@Override
+	public synchronized long getSavedNanos() {
+		return savedNanos;
+	}
+
+	@Override
+	public synchronized void reset() {
+		hits = 0;
+		misses = 0;
+		unpredicted = 0;
+		savedNanos = 0;
+	}
+
+	public void registerMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d hits, %d misses (hit rate %.1f%%), %d unpredicted, %.1f ms saved",
+				hits, misses, 100 * getHitRate(), unpredicted, savedNanos / 1e6);
+	}
+}
@@ -0,0 +1,16 @@
+package bothack;
+
+/** JMX view of {@link SpeculationStats}. */
+public interface SpeculationStatsMBean {
+	/** Speculated actions that were used. */
+	long getHits();
+	/** Speculations discarded because the real game state didn't match. */
+	long getMisses();
+	/** Actions chosen without a speculation (the previous action wasn't predictable). */
+	long getUnpredicted();
+	/** Hits divided by all speculations. */
+	double getHitRate();
+	/** Total time of the handler runs saved by hits. */
+	long getSavedNanos();
+	void reset();
+}
@@ -0,0 +1,61 @@
+package bothack;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Internal, thread-safe cache keyed by object identity that doesn't keep its
+ * keys alive.  Entries are dropped some time after their key is collected.
+ */
+public final class WeakIdentityCache<K, V> {
+	private static final class Key extends WeakReference<Object> {
+		private final int hash;
+
+		Key(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Object referent = get();
+			return referent != null && referent == ((Key) o).get();
+		}
+	}
+
+	private final Map<Key, V> map = new HashMap<Key, V>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	private void expunge() {
+		for (Object k; (k = queue.poll()) != null;)
+			map.remove(k);
+	}
+
+	/** Returns the value cached for the key or null. */
+	public synchronized V get(K key) {
+		expunge();
+		return map.get(new Key(key, null));
+	}
+
+	/** Caches the value for the key, replacing any previous value. */
+	public synchronized void put(K key, V value) {
+		expunge();
+		map.put(new Key(key, queue), value);
+	}
+
+	/** Number of cached entries (including not yet expunged ones). */
+	public synchronized int size() {
+		return map.size();
+	}
+}
@@ -32,6 +32,14 @@ public enum NavOption {
 	 * There is no sophisticated monster avoidance, the path may still be
 	 * dangerous or end up blocked when monsters move. */
 	NO_FIGHT(Keyword.intern(null, "no-fight")),
+	/** For distant targets plan the route on a coarse graph of the level's
+	 * areas and only compute the exact path for its beginning.
+	 * Faster on big levels, the returned path then only leads to a waypoint on
+	 * the route. */
+	HIERARCHICAL(Keyword.intern(null, "hierarchical")),
+	/** Prefer tiles that hostile monsters can't reach and attack next turn.
+	 * The expected damage on a tile is added to its movement cost. */
+	AVOID_DANGER(Keyword.intern(null, "avoid-danger")),
 	/** For interlevel navigation. */
 	UP(Keyword.intern(null, "up"));
 
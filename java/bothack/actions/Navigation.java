@@ -1,5 +1,7 @@
 package bothack.actions;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import bothack.bot.IGame;
@@ -56,7 +58,9 @@ public final class Navigation {
 		/** The next action that will lead towards reaching the target. */
 		IAction step();
 		/** The list of positions that are going to be stepped on along the
-		 * way towards target. */
+		 * way towards target.
+		 * With {@link NavOption#HIERARCHICAL} it may end at a waypoint short of
+		 * the target. */
 		List<IPosition> path();
 		/** The target tile position.
 		 * When using {@link NavOption#ADJACENT} this is not the adjacent tile but
@@ -65,6 +69,7 @@ public final class Navigation {
 	}
 	
 	private static final IFn NAVIGATE = Clojure.var("bothack.pathing", "navigate");
+	private static final IFn NAVIGATE_ALL = Clojure.var("bothack.pathing", "navigate-all");
 	private static final IFn SEEK = Clojure.var("bothack.pathing", "seek");
 	private static final IFn NAVOPTS = Clojure.var("bothack.pathing", "navopts");
 	
@@ -111,6 +116,45 @@ public final class Navigation {
 		return (IPath) NAVIGATE.invoke(game, new Predicate(target), NAVOPTS.invoke(opts, maxSteps));
 	}
 
+	private static List<IPath> toPaths(Object paths) {
+		Collection<?> c = (Collection<?>) paths;
+		List<IPath> res = new ArrayList<IPath>(c.size());
+		for (Object path : c)
+			res.add((IPath) path);
+		return res;
+	}
+
+	/**
+	 * Returns paths to all reachable matching tiles, ordered from the closest.
+	 * All of the paths are found in a single search, which is much cheaper
+	 * than navigating to each target separately.
+	 * @param opts Additional modifiers
+	 */
+	public static List<IPath> navigateAll(IGame game, IPredicate<ITile> target, NavOption... opts) {
+		return toPaths(NAVIGATE_ALL.invoke(game, new Predicate(target), NAVOPTS.invoke(opts)));
+	}
+
+	/**
+	 * Returns paths to all reachable matching tiles, ordered from the closest.
+	 * @param maxSteps Maximum number of steps
+	 * @param opts Additional modifiers
+	 * @see Navigation#navigateAll(IGame, IPredicate, NavOption...)
+	 */
+	public static List<IPath> navigateAll(IGame game, IPredicate<ITile> target, long maxSteps, NavOption... opts) {
+		return toPaths(NAVIGATE_ALL.invoke(game, new Predicate(target), NAVOPTS.invoke(opts, maxSteps)));
+	}
+
+	/**
+	 * Returns the shortest path to a tile matching the query and an action to perform to move along it.
+	 * Returns null if no target is reachable.
+	 * <p>This is usually much faster than the equivalent IPredicate variant as
+	 * the query is resolved to target positions before the search.</p>
+	 * @param opts Additional modifiers
+	 */
+	public static IPath navigate(IGame game, TileQuery target, NavOption... opts) {
+		return target.navigate(game, opts);
+	}
+
 	/**
 	 * Returns an action to look for the specified tile on the current level or
 	 * null if already standing at a matching tile.  You should only use this to
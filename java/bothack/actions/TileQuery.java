@@ -0,0 +1,134 @@
+package bothack.actions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+
+import bothack.actions.Navigation.IPath;
+import bothack.bot.IGame;
+import bothack.bot.IPosition;
+import bothack.bot.dungeon.Feature;
+import bothack.bot.dungeon.ILevel;
+import bothack.bot.dungeon.ITile;
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentHashSet;
+
+/**
+ * Declarative description of navigation targets.
+ * <p>Unlike an {@link bothack.bot.IPredicate IPredicate} the query is
+ * evaluated by the framework itself (using {@link ILevel#featureGrid()} and
+ * direct tile lookups) into a set of target positions before the search is
+ * run, so no Java code is called per tile during pathing.</p>
+ * <p>Queries are immutable, each modifier returns a new query.  All the
+ * conditions must hold for a tile to match.  Example:</p>
+ * <pre>
+ * TileQuery.tiles().feature(Feature.ALTAR, Feature.SINK).notWalked().within(20)
+ * </pre>
+ * @see Navigation#navigate(IGame, TileQuery, NavOption...)
+ */
+public final class TileQuery {
+	private static final IFn NAVIGATE_QUERY = Clojure.var("bothack.pathing", "navigate-query");
+	private static final IFn QUERY_POSITIONS = Clojure.var("bothack.pathing", "query-positions");
+	private static final IFn NAVOPTS = Clojure.var("bothack.pathing", "navopts");
+
+	static {
+		IFn require = Clojure.var("clojure.core", "require");
+		require.invoke(Clojure.read("bothack.pathing"));
+	}
+
+	private final EnumSet<Feature> features;
+	private final Boolean newItems;
+	private final Boolean walked;
+	private final Long within;
+
+	private TileQuery(EnumSet<Feature> features, Boolean newItems,
+			Boolean walked, Long within) {
+		this.features = features;
+		this.newItems = newItems;
+		this.walked = walked;
+		this.within = within;
+	}
+
+	/** Query matching all tiles. */
+	public static TileQuery tiles() {
+		return new TileQuery(null, null, null, null);
+	}
+
+	/** Only tiles with one of the given features.
+	 * Repeated calls narrow the set of features further. */
+	public TileQuery feature(Feature first, Feature... rest) {
+		EnumSet<Feature> fs = EnumSet.of(first, rest);
+		if (features != null)
+			fs.retainAll(features);
+		return new TileQuery(fs, newItems, walked, within);
+	}
+
+	/** Only tiles with items that changed since they were last examined.
+	 * @see ITile#hasNewItems() */
+	public TileQuery hasNewItems() {
+		return new TileQuery(features, true, walked, within);
+	}
+
+	/** Only tiles that were stepped on. */
+	public TileQuery walked() {
+		return new TileQuery(features, newItems, true, within);
+	}
+
+	/** Only tiles that were never stepped on. */
+	public TileQuery notWalked() {
+		return new TileQuery(features, newItems, false, within);
+	}
+
+	/** Only tiles reachable within the given number of steps. */
+	public TileQuery within(long steps) {
+		return new TileQuery(features, newItems, walked, steps);
+	}
+
+	IPersistentMap toMap() {
+		List<Object> kvs = new ArrayList<Object>();
+		if (features != null) {
+			List<Keyword> kws = new ArrayList<Keyword>();
+			for (Feature f : features)
+				kws.add(f.getKeyword());
+			kvs.add(Keyword.intern(null, "features"));
+			kvs.add(PersistentHashSet.create(kws));
+		}
+		if (newItems != null) {
+			kvs.add(Keyword.intern(null, "new-items"));
+			kvs.add(newItems);
+		}
+		if (walked != null) {
+			kvs.add(Keyword.intern(null, "walked"));
+			kvs.add(walked);
+		}
+		if (within != null) {
+			kvs.add(Keyword.intern(null, "within"));
+			kvs.add(within);
+		}
+		return PersistentHashMap.create(kvs.toArray());
+	}
+
+	/** Returns positions of the matching tiles on the current level. */
+	public List<IPosition> matching(IGame game) {
+		Collection<?> positions = (Collection<?>) QUERY_POSITIONS.invoke(
+				game.currentLevel(), toMap(), game.player());
+		List<IPosition> res = new ArrayList<IPosition>(positions.size());
+		for (Object pos : positions)
+			res.add((IPosition) pos);
+		return res;
+	}
+
+	IPath navigate(IGame game, NavOption... opts) {
+		return (IPath) NAVIGATE_QUERY.invoke(game, toMap(), NAVOPTS.invoke(opts));
+	}
+
+	@Override
+	public String toString() {
+		return "TileQuery" + toMap();
+	}
+}
@@ -1,5 +1,7 @@
 package bothack.bot;
 
+import java.util.List;
+
 /** 
  * The root of BotHack functionality.
  * <p>This represents a handle for the BotHack framework, through which you can
@@ -32,4 +34,9 @@ public interface IBotHack {
 	void replaceHandler(Object oldHandler, Object newHandler);
 	/** Returns the current game state snapshot. */
 	IGame game();
+	/**
+	 * Returns per-handler timing statistics of all handler invocations so far.
+	 * The list is empty unless :handler-stats is enabled in the configuration.
+	 */
+	List<IHandlerTiming> handlerTimings();
 }
@@ -0,0 +1,30 @@
+package bothack.bot;
+
+/**
+ * Timing statistics of a single handler for one of the event or prompt
+ * interfaces it implements.
+ * <p>Unlike most BotHack interfaces this one is backed by a mutable object
+ * that keeps being updated while the bot runs.</p>
+ * @see IBotHack#handlerTimings()
+ */
+public interface IHandlerTiming {
+	/** Name of the handler (Java class name or Clojure function that created it). */
+	String handler();
+	/** Simple name of the handler interface, like ActionHandler or FullFrameHandler. */
+	String protocol();
+	/** Number of recorded invocations. */
+	long calls();
+	/** Total wall time spent in the handler in nanoseconds. */
+	long totalNanos();
+	/** The longest recorded invocation in nanoseconds. */
+	long maxNanos();
+	/**
+	 * Estimate of the given percentile of the invocation wall time in nanoseconds
+	 * (with ~6% precision).
+	 * @param percentile Between 0.0 and 100.0
+	 */
+	long percentileNanos(double percentile);
+	/** Total bytes allocated by the delegator thread while running the handler
+	 * (0 if the JVM doesn't support allocation measurement). */
+	long allocatedBytes();
+}
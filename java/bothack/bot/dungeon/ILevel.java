@@ -28,4 +28,23 @@ public interface ILevel {
 	Boolean hasShop();
 	/** True if the level floor can be dug through (until proven otherwise). */
 	Boolean hasDiggableFloor();
+	/**
+	 * Returns the {@link Feature#ordinal()} of every tile on the level (-1 for
+	 * tiles without a known feature).
+	 * <p>The tile at position x,y is at index (y - 1) * 80 + x.  The array is
+	 * computed once and shared by all callers for the same level map, so it must
+	 * not be modified.  Meant for bots that scan whole levels without calling
+	 * {@link ILevel#at(IPosition)} for each tile.</p>
+	 */
+	int[] featureGrid();
+	/**
+	 * Returns the glyphs of every tile on the level, indexed like
+	 * {@link ILevel#featureGrid()}.  Must not be modified.
+	 */
+	char[] glyphGrid();
+	/**
+	 * Returns {@link ITile#wasSeen()} of every tile on the level, indexed like
+	 * {@link ILevel#featureGrid()}.  Must not be modified.
+	 */
+	boolean[] seenGrid();
 }
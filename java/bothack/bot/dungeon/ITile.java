@@ -15,6 +15,40 @@ import bothack.bot.items.IItem;
  *  @see ILevel#monsterAt(IPosition)
  */
 public interface ITile extends IPosition,IAppearance {
+	/** Bit of {@link ITile#flags()} set if {@link ITile#hasElbereth()} */
+	int ELBERETH = 1;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#isEngravable()} */
+	int ENGRAVABLE = 1 << 1;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#isTrap()} */
+	int TRAP = 1 << 2;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#hasBoulder()} */
+	int BOULDER = 1 << 3;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#wasSeen()} */
+	int SEEN = 1 << 4;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#dug()} */
+	int DUG = 1 << 5;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#hasNewItems()} */
+	int NEW_ITEMS = 1 << 6;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#sinkGaveRing()} */
+	int SINK_GAVE_RING = 1 << 7;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#sinkGaveFoocubus()} */
+	int SINK_GAVE_FOOCUBUS = 1 << 8;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#sinkGavePudding()} */
+	int SINK_GAVE_PUDDING = 1 << 9;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#isVibrating()} */
+	int VIBRATING = 1 << 10;
+	/** Bit of {@link ITile#flags()} set if {@link ITile#isBlocked()} */
+	int BLOCKED = 1 << 11;
+
+	/**
+	 * All the boolean properties of the tile as a bit set of the ELBERETH,
+	 * TRAP, ... constants, for example
+	 * <code>(tile.flags() &amp; ITile.TRAP) != 0</code> is the primitive
+	 * variant of {@link ITile#isTrap()}.
+	 */
+	int flags();
+	/** The {@link bothack.bot.Color#ordinal()} of the tile's color or -1. */
+	int colorOrdinal();
 	/** 
 	 * True if there is an undamaged Elbereth engraving on the tile. 
 	 * @see ITile#engravingType()
@@ -27,6 +61,8 @@ public interface ITile extends IPosition,IAppearance {
 	Boolean isEngravable();
 	/** The dungeon feature present on this tile or null. */
 	Feature feature();
+	/** The {@link Feature#ordinal()} of the feature present on this tile or -1. */
+	int featureOrdinal();
 	/** 
 	 * True if the tile has a trap.
 	 * @see ITile#feature()
@@ -57,6 +93,8 @@ public interface ITile extends IPosition,IAppearance {
 	EngravingType engravingType();
 	/** If the tile is in a recognized room returns the room type. */
 	RoomType room();
+	/** The {@link RoomType#ordinal()} of the tile's room or -1. */
+	int roomOrdinal();
 	/** For tiles with the SINK feature - true if kicking it already yielded a ring. */ 
 	Boolean sinkGaveRing();
 	/** For tiles with the SINK feature - true if kicking it already yielded a succubus or an incubus. */ 
@@ -65,6 +103,8 @@ public interface ITile extends IPosition,IAppearance {
 	Boolean sinkGavePudding();
 	/** For visited stairs or portals - returns the target branch. */
 	Branch leadsTo();
+	/** The {@link Branch#ordinal()} of the target branch or -1. */
+	int leadsToOrdinal();
 	/** For altars - returns the altar's alignment. */
 	Alignment altarAlignment();
 	/** True for the vibrating square. */
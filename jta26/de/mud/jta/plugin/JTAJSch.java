@@ -51,6 +51,7 @@ import com.jcraft.jsch.UserInfo;
 
 /**
  * Modified for ANBF: made .read() blocking, .write() flushes automatically, terminal id set to xterm
+ * Modified for BotHack: .read() waits for authentication without polling and reads directly into the caller's buffer
  * 
  * Secure Shell plugin for the Java Telnet Application (JTA). This is a plugin
  * to be used instead of Telnet for secure remote terminal sessions over
@@ -114,6 +115,7 @@ public class JTAJSch extends Plugin implements FilterPlugin, VisualPlugin {
     private final static int debug = 0;
     
     private volatile boolean auth = false;
+    private final Object authLock = new Object();
     
     protected MyUserInfo userInfo_;
     
@@ -252,7 +254,10 @@ public class JTAJSch extends Plugin implements FilterPlugin, VisualPlugin {
 		e.printStackTrace();
 		throw new RuntimeException(e);
 		}
-                auth = true;
+                synchronized (authLock) {
+                    auth = true;
+                    authLock.notifyAll();
+                }
             }
             
             public void offline() {
@@ -294,66 +299,27 @@ public class JTAJSch extends Plugin implements FilterPlugin, VisualPlugin {
         return source;
     }
     
-    private byte buffer[];
-    private int pos;
-    
     /**
-     * Read data from the backend and decrypt it. This is a buffering read
-     * as the encrypted information is usually smaller than its decrypted
-     * pendant. So it will not read from the backend as long as there is
-     * data in the buffer.
+     * Read decrypted data from the SSH channel.  Blocks until the session is
+     * authenticated and some data is available.  JSch already decrypts the
+     * data, so it is read directly into the given buffer.
      * @param b the buffer where to read the decrypted data in
      * @return the amount of bytes actually read.
      */
     public int read(byte[] b) throws IOException {
         // we don't want to read from the pipeline without authorization
-        while(!auth) try {
-            Thread.sleep(1000);
-        } catch(InterruptedException e) {
-            e.printStackTrace();
-        }
-        
-        // Empty the buffer before we do anything else
-        if(buffer != null) {
-            int amount = ((buffer.length - pos) <= b.length) ?
-            buffer.length - pos : b.length;
-            System.arraycopy(buffer, pos, b, 0, amount);
-            if(pos + amount < buffer.length) {
-                pos += amount;
-            } else
-                buffer = null;
-            return amount;
+        synchronized (authLock) {
+            while (!auth) try {
+                authLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new java.io.InterruptedIOException("interrupted waiting for SSH authentication");
+            }
         }
         
-        // now that the buffer is empty let's read more data and decrypt it
-        //    int n = source.read(b);
-        //    if(n > 0) {
-        int n;
-        final int length = b.length;
-        n = in_.read(b,0, b.length);
-        if (n < 0)
-            return n;
-        byte[] tmp = new byte[n];
-        System.arraycopy(b, 0, tmp, 0, n);
-        pos = 0;
-        //      buffer = handler.handleSSH(tmp);
-        buffer = tmp;
-        
-        if(debug > 0 && buffer != null && buffer.length > 0)
-            System.err.println("ssh: "+buffer);
-        
-        if(buffer != null && buffer.length > 0) {
-            if(debug > 0)
-                System.err.println("ssh: incoming="+n+" now="+buffer.length);
-            int amount = buffer.length <= b.length ?  buffer.length : b.length;
-            System.arraycopy(buffer, 0, b, 0, amount);
-            pos = n = amount;
-            if(amount == buffer.length) {
-                buffer = null;
-                pos = 0;
-            }
-        } else
-            return 0;
+        int n = in_.read(b, 0, b.length);
+        if(debug > 0)
+            System.err.println("ssh: incoming="+n);
         return n;
     }
     
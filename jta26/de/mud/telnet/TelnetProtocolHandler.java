@@ -46,14 +46,19 @@ public abstract class TelnetProtocolHandler {
   /** debug level */
   private final static int debug = 0;
 
-  /** temporary buffer for data-telnetstuff-data transformation */
+  /** temporary buffer for data-telnetstuff-data transformation,
+   * unprocessed data is between tempstart and tempend */
   private byte[] tempbuf = new byte[0];
+  private int tempstart = 0, tempend = 0;
 
   /** the data sent on pressing <RETURN>  \n */
   private byte[] crlf = new byte[2];
   /** the data sent on pressing <LineFeed>  \r */
   private byte[] cr = new byte[2];
 
+  /** buffer for the negotiation replies sent by negotiate() */
+  private final byte[] sendbuf = new byte[3];
+
   /**
    * Create a new telnet protocol handler.
    */
@@ -266,6 +271,18 @@ public abstract class TelnetProtocolHandler {
    */
   public void transpose(byte[] buf) throws IOException {
     int i;
+
+    // fast path: nothing to escape, send the buffer as is
+    boolean binary = receivedDX[TELOPT_BINARY + 128 ] == DO;
+    for (i = 0; i < buf.length; i++) {
+      byte b = buf[i];
+      if (b == IAC || (!binary && (b == 10 || b == 13)))
+        break;
+    }
+    if (i == buf.length) {
+      write(buf);
+      return;
+    }
     
     byte[] nbuf,xbuf;
     int nbufptr=0;
@@ -336,17 +353,29 @@ public abstract class TelnetProtocolHandler {
   public int negotiate(byte nbuf[])
   throws IOException
   {
-    int count = tempbuf.length;
+    int count = tempend;
     byte[] buf = tempbuf;
-    byte sendbuf[] = new byte[3];
     byte b,reply;
-    int boffset = 0, noffset = 0;
+    int boffset = tempstart, noffset = 0;
     boolean dobreak = false;
 
-    if (count == 0) 	// buffer is empty.
+    if (boffset == count) 	// buffer is empty.
       return -1;
 
     while(!dobreak && (boffset < count) && (noffset < nbuf.length)) {
+      if (neg_state == STATE_DATA) {
+        // fast path: copy the data up to the next IAC in one go
+        int end = Math.min(count, boffset + nbuf.length - noffset);
+        int i = boffset;
+        while (i < end && buf[i] != IAC)
+          i++;
+        if (i > boffset) {
+          System.arraycopy(buf, boffset, nbuf, noffset, i - boffset);
+          noffset += i - boffset;
+          boffset = i;
+          continue;
+        }
+      }
       b=buf[boffset++];
       // of course, byte is a signed entity (-128 -> 127)
       // but apparently the SGI Netscape 3.0 doesn't seem
@@ -633,18 +662,25 @@ public abstract class TelnetProtocolHandler {
         break;
       }
     }
-    // shrink tempbuf to new processed size.
-    byte[] xb = new byte[count-boffset];
-    System.arraycopy(tempbuf,boffset,xb,0,count-boffset);
-    tempbuf = xb;
+    // mark the processed part of tempbuf as free
+    if (boffset == count)
+      tempstart = tempend = 0;
+    else
+      tempstart = boffset;
     return noffset;
   }
 
   public void inputfeed(byte[] b, int len) {
-    byte[] xb = new byte[tempbuf.length+len];
-
-    System.arraycopy(tempbuf,0,xb,0,tempbuf.length);
-    System.arraycopy(b,0,xb,tempbuf.length,len);
-    tempbuf = xb;
+    int pending = tempend - tempstart;
+    if (tempend + len > tempbuf.length) {
+      // compact (and grow if needed) to make room for the new data
+      byte[] xb = pending + len > tempbuf.length ? new byte[pending + len] : tempbuf;
+      System.arraycopy(tempbuf,tempstart,xb,0,pending);
+      tempbuf = xb;
+      tempstart = 0;
+      tempend = pending;
+    }
+    System.arraycopy(b,0,tempbuf,tempend,len);
+    tempend += len;
   }
 }
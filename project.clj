@@ -23,6 +23,8 @@
   :dependencies [[org.clojure/clojure "1.6.0"]
                  [org.clojure/data.priority-map "0.0.7"]
                  [org.clojure/tools.logging "0.2.6"]
+                 ; bothack.itemid/facts-db builds pldb DBs directly, check it
+                 ; when upgrading (it asserts so on load)
                  [org.clojure/core.logic "0.8.8"]
                  [com.cemerick/pomegranate "0.3.0"]
                  [org.flatland/ordered "1.5.2"]
@@ -36,4 +38,9 @@
   ;:global-vars {*warn-on-reflection* true}
   :aot [clojure.tools.logging.impl bothack.delegator bothack.actions
         bothack.term bothack.ttyrec bothack.main]
+  ; lein with-profile production uberjar - everything including the bundled
+  ; bots precompiled, see doc/running.md
+  :profiles {:production {:aot :all
+                          :uberjar-name "bothack-standalone.jar"
+                          :jvm-opts ["-Dlog4j.configuration=file:config/log4j-production.properties"]}}
   :main bothack.main)
@@ -0,0 +1,44 @@
+#!/bin/bash
+
+# builds the production uberjar (all namespaces AOT compiled) and an AppCDS
+# archive of the classes loaded by a training run of the bot with the given
+# config.  The run is stopped at the bot's first action or after TIMEOUT
+# seconds, whichever comes first - the namespaces are all loaded at startup,
+# so the run doesn't need to get into a game (a config with an unreachable
+# server archives the same classes).  Only the JDK and Java classes get
+# archived, CDS skips the Java 5 class files generated by Clojure 1.6.
+# needs JDK 13+ (-XX:ArchiveClassesAtExit).
+# usage: scripts/cds-train.sh <config.edn> [archive]
+
+JAR="target/bothack-standalone.jar"
+TIMEOUT=${TIMEOUT:-60} # seconds
+
+if [ $(basename `pwd`) = "scripts" ]; then
+    cd ..
+fi
+
+CONFIG="$1"
+ARCHIVE="${2:-bothack.jsa}"
+if [ ! -f "$CONFIG" ]; then
+    echo "usage: $0 <config.edn> [archive]" >&2
+    exit 1
+fi
+
+lein with-profile production uberjar || exit 1
+OUT=$(mktemp)
+trap "rm -f $OUT" EXIT
+
+rm -f "$ARCHIVE"
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$JAR" bothack.main "$CONFIG" > "$OUT" 2>&1 &
+pid=$!
+for i in $(seq $((TIMEOUT * 10))); do
+    grep -q "time to first action" "$OUT" && break
+    kill -0 $pid 2> /dev/null || break
+    sleep 0.1
+done
+grep -o 'time to first action.*' "$OUT" || echo "no action within ${TIMEOUT}s"
+# the archive is written when the JVM exits, also on SIGTERM
+kill $pid 2> /dev/null
+wait $pid 2> /dev/null
+[ -f "$ARCHIVE" ] || { echo "failed to write $ARCHIVE" >&2; exit 1; }
+echo "run with: java -XX:SharedArchiveFile=$ARCHIVE -cp $JAR bothack.main <config>"
@@ -0,0 +1,115 @@
+; Checks that the search of bothack.pathing/navigate finds the same paths and
+; steps when it only tests whether moves are possible (the default) as when it
+; builds the action for every expanded edge, and compares the time both take.
+; Runs on generated fully explored levels with walls, all kinds of doors,
+; traps, shops and monsters (the same seeds every run).
+; usage: lein run -m clojure.main scripts/pathing-bench.clj [levels]
+
+(ns bothack.pathing-bench
+  (:require [bothack.dungeon :refer :all]
+            [bothack.game :refer [new-game]]
+            [bothack.pathing :refer :all]
+            [bothack.position :refer :all]
+            [bothack.util :refer :all]))
+
+(defn- random-level
+  "Fully explored level with random features and monsters"
+  [level seed]
+  (let [rnd (let [r (java.util.Random. seed)] #(.nextInt r %))]
+    (-> level
+        (update :tiles
+                (fn [tiles]
+                  (mapv (fn [row]
+                          (mapv (fn [{:keys [x y] :as tile}]
+                                  (let [f (cond (or (zero? x) (= 79 x)
+                                                    (= 1 y) (= 21 y)) :wall
+                                                (< 60 x 70) (if (< 3 y 10)
+                                                              :floor :wall)
+                                                :else (let [n (rnd 100)]
+                                                        (cond (< n 20) :wall
+                                                              (< n 23) :door-open
+                                                              (< n 26) :door-closed
+                                                              (< n 28) :door-locked
+                                                              (< n 29) :trap
+                                                              (< n 31) nil
+                                                              :else :floor)))]
+                                    (assoc tile
+                                           :feature f
+                                           :seen (some? f)
+                                           :glyph (case f
+                                                    :wall \-
+                                                    nil \space
+                                                    (:door-open :door-closed
+                                                     :door-locked) \+
+                                                    :trap \^
+                                                    \.)
+                                           :room (if (and (< 60 x 70)
+                                                          (< 3 y 10))
+                                                   :shop)
+                                           :walked (if (< (rnd 10) 5) 1))))
+                                row))
+                        tiles)))
+        (assoc :monsters
+               (into {} (for [_ (range 40)
+                              :let [x (inc (rnd 78)) y (+ 2 (rnd 19))]]
+                          [(position x y) {:x x :y y :glyph \d
+                                           :peaceful (zero? (rnd 3))
+                                           :friendly (zero? (rnd 3))}]))))))
+
+(defn- cases [n]
+  (let [game (-> (new-game)
+                 (assoc :dlvl "Dlvl:1" :turn 1)
+                 (update :player assoc :x 1 :y 2)
+                 ensure-curlvl)]
+    (vec (for [seed (range n)
+               :let [start (position (inc (rem (* 7 seed) 59))
+                                     (+ 2 (rem seed 18)))
+                     game (-> game
+                              (update-curlvl
+                                #(-> (random-level % seed)
+                                     (assoc-in [:tiles (dec (:y start))
+                                                (:x start) :feature] :floor)
+                                     (update :monsters dissoc start)))
+                              (update :player assoc
+                                      :x (:x start) :y (:y start)))]
+               [target opts] [[(position 70 18) {}]
+                              [(position 3 3) #{:walking}]
+                              [(position 40 10) #{:adjacent}]
+                              [(position 60 4) #{:no-fight}]
+                              [(position 65 6) {}]
+                              [#{(position 75 20) (position 2 19)
+                                 (position 50 2)} {}]
+                              [#(= :door-locked (:feature %)) {}]]]
+           [game target opts]))))
+
+(defn- result [path]
+  (if path
+    [(:path path) (:target path)
+     (some-> (:step path) (->> (into {})) (dissoc :handlers))]))
+
+(defn- run-all [cases]
+  (mapv (fn [[game target opts]] (result (navigate game target opts)))
+        cases))
+
+(defn- bench [label cases]
+  (run-all cases) ; warm-up
+  (let [start (System/nanoTime)]
+    (dotimes [_ 5] (run-all cases))
+    (println (format "%s: %.1f ms per run" label
+                     (/ (- (System/nanoTime) start) 5e6)))))
+
+(defn- eager-move-cost [game level from to opts]
+  (move game level from to opts))
+
+(let [cases (cases (Integer/parseInt (or (first *command-line-args*) "30")))
+      lazy (run-all cases)
+      eager (with-redefs-fn {#'bothack.pathing/move-cost eager-move-cost}
+              #(run-all cases))
+      mismatches (remove true? (map = lazy eager))]
+  (println (count cases) "searches," (count (filter some? lazy))
+           "paths found," (count mismatches) "mismatches")
+  (bench "actions for the taken edges only" cases)
+  (with-redefs-fn {#'bothack.pathing/move-cost eager-move-cost}
+    #(bench "actions for all expanded edges" cases))
+  (shutdown-agents)
+  (System/exit (if (seq mismatches) 1 0)))
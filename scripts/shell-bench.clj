@@ -0,0 +1,87 @@
+; Compares the local pseudo-terminal interfaces: the :pty one (ScriptShell,
+; running the command through util-linux script) and the :shell one (JTA's
+; Shell plugin, needs the native jtapty library on java.library.path).  For
+; each plugin it measures the read throughput of a command printing the given
+; amount of data (read 256 bytes at a time like the terminal emulator does)
+; and the round trip latency of single keys echoed back by cat.
+; usage: lein run -m clojure.main scripts/shell-bench.clj [megabytes] [round-trips] [plugin...]
+; (plugins are ScriptShell and Shell by default)
+
+(ns bothack.shell-bench
+  (:import [de.mud.jta FilterPlugin PluginConfig PluginLoader]
+           [de.mud.jta.event ConfigurationRequest SocketRequest]
+           [java.io File IOException]
+           [java.util Properties Vector]))
+
+(defn- command-file
+  "Executable sh script running the command on a raw terminal (the Shell
+  plugin executes the command without a shell)"
+  [command]
+  (let [f (File/createTempFile "shell-bench" ".sh")]
+    (.deleteOnExit f)
+    (spit f (str "#!/bin/sh\nstty raw -echo\n" command "\n"))
+    (.setExecutable f true)
+    (.getPath f)))
+
+(defn- start
+  "Starts the command with the named protocol plugin, returns [loader plugin]"
+  [plugin command]
+  (let [pl (PluginLoader. (Vector. ["de.mud.jta.plugin" "bothack"]))
+        ^FilterPlugin shell (.addPlugin pl plugin "protocol")]
+    (.broadcast pl (ConfigurationRequest.
+                     (doto (PluginConfig. (Properties.))
+                       (.setProperty "Shell" "command" (command-file command)))))
+    (.broadcast pl (SocketRequest. "localhost" 0))
+    [pl shell]))
+
+(defn- read-some
+  "Reads into the buffer, -1 at the end of output (Shell throws instead)"
+  [^FilterPlugin shell buffer]
+  (try (.read shell buffer)
+       (catch IOException _ -1)))
+
+(defn- throughput [plugin total]
+  (let [[^PluginLoader pl shell] (start plugin (format "head -c %d /dev/zero | tr '\\000' x" total))
+        buffer (byte-array 256)
+        start (System/nanoTime)
+        read (loop [read 0]
+               (let [n (read-some shell buffer)]
+                 (if (neg? n)
+                   read
+                   (recur (+ read n)))))
+        secs (/ (- (System/nanoTime) start) 1e9)]
+    (.broadcast pl (SocketRequest.))
+    (format "read %d bytes in %.2f s, %.1f MB/s" read secs
+            (/ read secs 1024 1024))))
+
+(defn- latency [plugin round-trips]
+  (let [[^PluginLoader pl ^FilterPlugin shell] (start plugin "exec cat")
+        buffer (byte-array 256)
+        round-trip (fn []
+                     (let [start (System/nanoTime)]
+                       (.write shell (byte-array [(byte 97)]))
+                       (loop []
+                         (let [n (read-some shell buffer)]
+                           (when (and (not (neg? n))
+                                      (not-any? #(= 97 %) (take n buffer)))
+                             (recur))))
+                       (/ (- (System/nanoTime) start) 1e3)))
+        _ (dotimes [_ 100] (round-trip)) ; warm-up, stty done
+        times (vec (sort (repeatedly round-trips round-trip)))]
+    (.broadcast pl (SocketRequest.))
+    (format "%d round trips, mean %.0f us, median %.0f us, 99th percentile %.0f us"
+            round-trips (/ (reduce + times) round-trips)
+            (times (quot round-trips 2))
+            (times (quot (* 99 round-trips) 100)))))
+
+(let [[megabytes round-trips & plugins] *command-line-args*
+      total (* 1024 1024 (Long/parseLong (or megabytes "64")))
+      round-trips (Long/parseLong (or round-trips "2000"))]
+  (doseq [plugin (or plugins ["ScriptShell" "Shell"])]
+    (try
+      (println plugin "throughput:" (throughput plugin total))
+      (println plugin "latency:" (latency plugin round-trips))
+      (catch Throwable e
+        (println plugin "failed:" e))))
+  (shutdown-agents)
+  (System/exit 0))
@@ -0,0 +1,95 @@
+; Measures the hit rate of speculative action choice (:speculate) with the
+; framework's own per-action handlers (the action handlers and
+; reset-exploration) and an ActionHandler walking between the corners of a
+; large room step by step.  NetHack is simulated: each move succeeds after a
+; fixed round trip, then the AboutToChooseActionHandlers run and the next
+; action is chosen like on a full frame.  Autotravel isn't predicted, so the
+; walking uses :no-autonav.
+; usage: lein run -m clojure.main scripts/speculation-bench.clj [steps] [round-trip-ms]
+
+(ns bothack.speculation-bench
+  (:require [bothack.bothack]
+            [bothack.delegator :refer :all]
+            [bothack.dungeon :refer :all]
+            [bothack.fov :refer [update-fov]]
+            [bothack.game :refer [new-game]]
+            [bothack.handlers :refer :all]
+            [bothack.pathing :refer :all]
+            [bothack.position :refer :all]
+            [bothack.speculation :refer :all]
+            [bothack.util :refer :all])
+  (:import [bothack SpeculationStats]))
+
+(defn- room-game
+  "Game with a lit floor room x 2..77, y 2..20 and the player at its corner"
+  []
+  (-> (new-game)
+      (assoc :dlvl "Dlvl:1" :turn 1)
+      (update :player assoc :x 2 :y 2)
+      ensure-curlvl
+      (update-curlvl
+        (fn [level]
+          (reduce (fn [level [x y]]
+                    (let [wall? (or (#{1 78} x) (#{1 21} y))]
+                      (update-in level [:tiles (dec y) x] assoc
+                                 :feature (if wall? :wall :floor)
+                                 :glyph (if wall? \- \.)
+                                 :seen true)))
+                  level
+                  (for [x (range 1 79) y (range 1 22)] [x y]))))))
+
+(defn- step
+  "The game after a successful move in the direction"
+  [game dir]
+  (let [pos (in-direction (:player game) dir)]
+    (-> game
+        (update :player assoc :x (:x pos) :y (:y pos))
+        (update :turn inc)
+        (update :turn* inc)
+        (update-at pos #(-> %
+                            (update :first-walked (fn [t] (or t (:turn game))))
+                            (assoc :walked (:turn game))))
+        (update-fov pos))))
+
+(let [[steps rtt] (map #(Long/parseLong %) *command-line-args*)
+      steps (or steps 300)
+      rtt (or rtt 20)
+      game (atom (room-game))
+      delegator (agent (new-delegator (fn [_]))
+                       :error-handler #(.printStackTrace ^Throwable %2))
+      bh (bothack.bothack/map->BotHack
+           {:game game :delegator delegator :config {}})
+      speculation (atom nil)
+      stats (SpeculationStats.)
+      chosen (atom nil)
+      corners (cycle [(position 77 20) (position 2 2)
+                      (position 77 2) (position 2 20)])
+      target (atom corners)]
+  (register-handler bh (reify ActionHandler
+                         (choose-action [_ game]
+                           (when (= (position (:player game))
+                                    (first @target))
+                             (swap! target next))
+                           (:step (navigate game (first @target)
+                                            #{:no-autonav})))))
+  (register-handler bh priority-top (reset-exploration bh))
+  (register-handler bh priority-bottom
+                    (@#'bothack.bothack/actions-handler bh))
+  (register-handler bh priority-bottom (speculation-handler bh speculation))
+  (register-handler bh priority-bottom
+                    (reify ActionChosenHandler
+                      (action-chosen [_ action]
+                        (reset! chosen action))))
+  (await delegator)
+  (let [start (System/nanoTime)]
+    (dotimes [_ steps]
+      (send delegator #(about-to-choose % @game))
+      (send delegator #(choose-action-speculated % @game speculation stats))
+      (await delegator)
+      (Thread/sleep rtt) ; NetHack and the scraper are busy with the move
+      (swap! game step (:dir @chosen))
+      (await delegator))
+    (println (format "%d steps in %.1f s, %s" steps
+                     (/ (- (System/nanoTime) start) 1e9) stats)))
+  (shutdown-agents)
+  (System/exit 0))
@@ -0,0 +1,50 @@
+; Measures the read throughput of the :ssh interface (the JTAJSch plugin).
+; Logs in with the :host, :ssh-user and :ssh-pass of the config, makes the
+; remote shell print the given amount of data and reads it the way the
+; terminal emulator does (256 bytes at a time).  The account needs a normal
+; shell, so use a local sshd with a test user rather than a public NetHack
+; server (the plugin always connects to port 22).  To compare with an older
+; version of the plugin, check out its JTAJSch.java and run `lein javac`
+; before running this again.
+; usage: lein run -m clojure.main scripts/ssh-bench.clj <config.edn> [megabytes]
+
+(ns bothack.ssh-bench
+  (:require [bothack.util :refer [config-get]])
+  (:import [de.mud.jta FilterPlugin PluginConfig PluginLoader]
+           [de.mud.jta.event ConfigurationRequest SocketRequest]
+           [java.util Properties Vector]))
+
+(let [[fname megabytes] *command-line-args*
+      _ (when-not fname
+          (println "usage: scripts/ssh-bench.clj <config.edn> [megabytes]")
+          (System/exit 1))
+      config (binding [*read-eval* false] (read-string (slurp fname)))
+      total (* 1024 1024 (Long/parseLong (or megabytes "64")))
+      pl (PluginLoader. (Vector. ["de.mud.jta.plugin"]))
+      ^FilterPlugin ssh (.addPlugin pl "JTAJSch" "protocol")
+      buffer (byte-array 256)]
+  (.broadcast pl (ConfigurationRequest.
+                   (doto (PluginConfig. (Properties.))
+                     (.setProperty "SSH" "user" (config-get config :ssh-user))
+                     (.setProperty "SSH" "password"
+                                   (config-get config :ssh-pass)))))
+  (.broadcast pl (SocketRequest. (config-get config :host) 22))
+  (.write ssh (.getBytes (format "head -c %d /dev/zero | tr '\\000' x; exit\n"
+                                 total)))
+  ; skip the login banner and the echoed command up to the first x
+  (loop []
+    (let [n (.read ssh buffer)]
+      (when (and (pos? n) (not-any? #(= (int \x) %) (take n buffer)))
+        (recur))))
+  (let [start (System/nanoTime)
+        read (loop [read 0]
+               (let [n (.read ssh buffer)]
+                 (if (neg? n)
+                   read
+                   (recur (+ read n)))))
+        secs (/ (- (System/nanoTime) start) 1e9)]
+    (println (format "read %d bytes in %.2f s, %.1f MB/s" read secs
+                     (/ read secs 1024 1024))))
+  (.broadcast pl (SocketRequest.))
+  (shutdown-agents)
+  (System/exit 0))
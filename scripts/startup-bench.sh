@@ -0,0 +1,50 @@
+#!/bin/bash
+
+# measures the startup latency of the bot - runs it several times with the
+# given config and prints the "time to first action" logged by each run.
+# The config has to get the bot into a real game where it chooses actions
+# (a bothack.mockserver replay doesn't: the recording doesn't react to the
+# bot's keys so the scraper never gets a consistent game).  Each run is
+# killed after its first action or TIMEOUT seconds, so the game must be
+# possible to start again right away (e.g. a local NetHack with a save
+# restored by the command, like in run.sh).
+# set JAR to run a prebuilt uberjar instead of compiling with lein and
+# JAVA_OPTS for the bot's JVM, e.g. for the archive made by cds-train.sh:
+#   JAR=target/bothack-standalone.jar JAVA_OPTS=-XX:SharedArchiveFile=bothack.jsa
+# usage: scripts/startup-bench.sh <config.edn> [runs]
+
+TIMEOUT=${TIMEOUT:-120} # seconds
+
+if [ $(basename `pwd`) = "scripts" ]; then
+    cd ..
+fi
+
+CONFIG="$1"
+RUNS="${2:-5}"
+if [ ! -f "$CONFIG" ]; then
+    echo "usage: $0 <config.edn> [runs]" >&2
+    exit 1
+fi
+
+if [ -n "$JAR" ]; then
+    CP="$JAR"
+else
+    lein compile || exit 1
+    CP=$(lein classpath)
+fi
+OUT=$(mktemp)
+trap "rm -f $OUT" EXIT
+
+for i in $(seq "$RUNS"); do
+    java $JAVA_OPTS -cp "$CP" clojure.main -m bothack.main "$CONFIG" > "$OUT" 2>&1 &
+    pid=$!
+    for t in $(seq $((TIMEOUT * 10))); do
+        grep -q "time to first action" "$OUT" && break
+        kill -0 $pid 2> /dev/null || break
+        sleep 0.1
+    done
+    res=$(grep -o 'time to first action.*' "$OUT")
+    echo "run $i: ${res:-no action within ${TIMEOUT}s}"
+    kill $pid 2> /dev/null
+    wait $pid 2> /dev/null
+done
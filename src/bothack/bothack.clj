@@ -8,6 +8,7 @@
             [bothack.dungeon :refer :all]
             [bothack.item :refer :all]
             [bothack.itemid :refer :all]
+            [bothack.journal :refer :all]
             [bothack.term :refer :all]
             [bothack.game :refer :all]
             [bothack.handlers :refer :all]
@@ -15,9 +16,15 @@
             [bothack.position :refer :all]
             [bothack.scraper :refer :all]
             [bothack.sokoban :refer :all]
-            [bothack.tracker :refer :all]))
+            [bothack.speculation :refer :all]
+            [bothack.tracker :refer :all])
+  (:import (bothack ActionBudget HandlerStats JfrEvents SpeculationStats)
+           (java.lang.management ManagementFactory)))
 
-(defrecord BotHack [config delegator jta scraper game]
+(defrecord BotHack
+  [config delegator jta scraper game
+   game-over ; promise delivered when the game ends or is stopped
+   on-stop] ; atom of fns to call when stopped (cancelling per-game threads)
   bothack.bot.IBotHack
   (registerHandler [this handler]
     (register-handler this handler))
@@ -27,7 +34,11 @@
     (deregister-handler this handler))
   (replaceHandler [this handler-old handler-new]
     (replace-handler this handler-old handler-new))
-  (game [this] @(:game this)))
+  (game [this] @(:game this))
+  (handlerTimings [this]
+    (if-let [stats (:stats @(:delegator this))]
+      (.timings ^HandlerStats stats)
+      [])))
 
 (defmethod print-method BotHack [bh w]
   (.write w "<BotHack instance>"))
@@ -114,7 +125,16 @@
              (config-get config :port 23))
   bh)
 
+(defn on-stop
+  "Calls f when the instance is stopped."
+  [bh f]
+  (swap! (:on-stop bh) conj f)
+  bh)
+
 (defn stop [bh]
+  (deliver (:game-over bh) true)
+  (doseq [f @(:on-stop bh)]
+    (f))
   (stop-jta (:jta bh))
   (dosync (ref-set (:scraper bh) nil))
   (log/info "BotHack instance stopped")
@@ -204,20 +224,112 @@
     WhatNameHandler
     (what-name [_ _] "")))
 
+(defn- log-handler-stats [^HandlerStats stats]
+  (log/info "handler stats:" (.getTotalCalls stats) "calls,"
+            (format "%.1f ms total" (/ (.getTotalNanos stats) 1e6))
+            (->> (.getSummary stats)
+                 (take 10)
+                 (map (partial str "\n  "))
+                 (apply str))))
+
+(defn- init-handler-stats [{:keys [config delegator] :as bh}]
+  (when (config-get config :handler-stats false)
+    (let [stats (HandlerStats.)
+          interval (config-get config :handler-stats-interval 60)]
+      (try (.registerMBean stats)
+           (catch Exception e
+             (log/warn e "failed to register handler stats MBean")))
+      (send delegator set-stats stats)
+      (when (pos? interval)
+        (let [logger (future (while true
+                               (Thread/sleep (* 1000 interval))
+                               (log-handler-stats stats)))]
+          ; the JVM may live on to play another game
+          (on-stop bh #(future-cancel logger))))))
+  bh)
+
+(defn- init-jfr-events [{:keys [config] :as bh}]
+  (if (and (config-get config :jfr-events false)
+           (not (JfrEvents/enable)))
+    (log/warn "JFR events are not supported by this JVM"))
+  bh)
+
+(defn- init-action-budget [{:keys [config delegator] :as bh}]
+  (when-let [ms (config-get config :action-budget-ms nil)]
+    (let [budget (ActionBudget. ms)]
+      (try (.registerMBean budget)
+           (catch Exception e
+             (log/warn e "failed to register action budget MBean")))
+      ; when out of time let a turn pass, the next action gets a fresh budget
+      (send delegator set-budget budget #(with-reason "action budget exceeded"
+                                           (->Search)))
+      (register-handler bh (reify GameStateHandler
+                             (started [_])
+                             (ended [_]
+                               (log/info "action budget:" budget))))))
+  bh)
+
+(defn- first-action-timer
+  "Logs the startup latency - time from the JVM start and from creating the
+  instance to the first chosen action."
+  [bh created]
+  (reify ActionChosenHandler
+    (action-chosen [this _]
+      (let [now (System/currentTimeMillis)]
+        (log/info "time to first action:"
+                  (- now (.getStartTime (ManagementFactory/getRuntimeMXBean)))
+                  "ms since JVM start,"
+                  (- now created) "ms since instance creation"))
+      (deregister-handler bh this))))
+
+(defn- init-journal [{:keys [config] :as bh}]
+  (if-let [dir (config-get config :journal nil)]
+    (try (register-handler bh (journal-handler bh (new-journal dir)))
+         (catch java.io.IOException e
+           (log/error e "failed to open the journal"))))
+  bh)
+
+(defn- init-speculation
+  "Returns the fn choosing the next action on full frames - speculative if
+  enabled."
+  [{:keys [config delegator game] :as bh}]
+  (if (config-get config :speculate false)
+    (let [stats (SpeculationStats.)
+          speculation (atom nil)]
+      (try (.registerMBean stats)
+           (catch Exception e
+             (log/warn e "failed to register speculation stats MBean")))
+      (register-handler bh priority-bottom (speculation-handler bh speculation))
+      (register-handler bh (reify GameStateHandler
+                             (started [_])
+                             (ended [_]
+                               (log/info "speculation stats:" stats))))
+      (on-stop bh #(some-> @speculation :result future-cancel))
+      #(choose-action-speculated % @game speculation stats))
+    #(choose-action % @game)))
+
 (defn new-bh
   ([] (new-bh "config/shell-config.edn"))
   ([fname]
-   (let [delegator (agent (new-delegator nil)
+   (preload-db)
+   (let [created (System/currentTimeMillis)
+         delegator (agent (new-delegator nil)
                           :error-handler
                           #(log/error %2 "delegator caught error"))
          config (load-config fname)
          jta (init-jta config delegator)
          scraper-fn (ref nil)
          game (atom (new-game))
-         bh (BotHack. config delegator jta scraper-fn game)
-         scraper (scraper-handler scraper-fn delegator)]
+         bh (BotHack. config delegator jta scraper-fn game (promise)
+                      (atom []))
+         scraper (scraper-handler scraper-fn delegator)
+         choose-next (init-speculation bh)]
      (send delegator set-writer (partial raw-write jta))
      (-> bh
+         init-handler-stats
+         init-action-budget
+         init-journal
+         init-jfr-events
          update-inventory
          update-discoveries
          (register-handler (dec priority-top) (game-handler bh))
@@ -225,9 +337,10 @@
                            (reify FullFrameHandler
                              (full-frame [_ _]
                                (send delegator #(about-to-choose % @game))
-                               (send delegator #(choose-action % @game)))))
+                               (send delegator choose-next))))
          (register-handler priority-top (set-race-role-handler bh))
          (register-handler priority-bottom (actions-handler bh))
+         (register-handler (first-action-timer bh created))
          (register-handler priority-top (examine-handler bh))
          (register-handler priority-top (call-id-handler bh))
          (register-handler priority-top (mark-recharge-handler bh))
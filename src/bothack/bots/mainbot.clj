@@ -1069,7 +1069,7 @@
            (:step (navigate game
                             (complement (partial exposed? game (curlvl game)))
                             {:max-steps 8 :no-traps true :explored true
-                             :no-fight true})))
+                             :no-fight true :avoid-danger true})))
          (with-reason "recovering" (->Repeated (->Wait) 10))))))
 
 (defn retreat [{:keys [player] :as game}]
@@ -1109,7 +1109,8 @@
               (recover game))
             (if-let [{:keys [step target]} (navigate game stairs-up?
                                                      #{:no-fight :explored
-                                                       :no-autonav :walking})]
+                                                       :no-autonav :walking
+                                                       :avoid-danger})]
               (if (stairs-up? (at level player))
                 (if (and (seq threats) (not= 1 (dlvl game)))
                   (with-reason "retreating upstairs" ->Ascend)
@@ -1118,11 +1119,13 @@
                         (some->> (:dir step) (in-direction player)
                                  neighbors (not-any? threats)))
                   step)))
-            (if-let [nbr (find-first #(and (not (exposed? game level %))
-                                           (passable-walking? game level tile %)
-                                           (not (monster-at level %))
-                                           (not-any? threats (neighbors %)))
-                                     (neighbors level tile))]
+            (if-let [nbr (min-by (partial danger level)
+                                 (filter #(and (not (exposed? game level %))
+                                               (passable-walking? game level
+                                                                  tile %)
+                                               (not (monster-at level %))
+                                               (not-any? threats (neighbors %)))
+                                         (neighbors level tile)))]
               (with-reason "running away"
                 (->Move (towards tile nbr))))
             (log/debug "retreat failed"))))))
@@ -2256,6 +2259,7 @@
             nil))))))
 
 (defn init [{:keys [game] :as bh}]
+  (reset! desired* nil) ; from the previous game when running as a worker
   (-> bh
       (register-handler priority-bottom (pause-handler bh))
       (register-handler (reify ChooseCharacterHandler
@@ -10,21 +10,23 @@
             [bothack.position :refer :all]
             [bothack.util :refer :all]
             [clojure.string :as string]
-            [clojure.tools.logging :as log]))
+            [clojure.tools.logging :as log])
+  (:import (bothack ActionBudget HandlerStats JfrEvents)))
 
 (defprotocol NetHackWriter
   (write [this cmd] "Write a string to the NetHack terminal as if typed."))
 
-(defrecord Delegator [writer handlers inhibited]
+(defrecord Delegator [writer handlers inhibited stats]
   NetHackWriter
   (write [this cmd]
     (when-not (:inhibited this)
       (log/debug "writing to terminal:" (with-out-str (pprint ^String cmd)))
-      ((:writer this) cmd))
+      (with-jfr-event [TERMINAL_WRITE (constantly cmd)]
+        ((:writer this) cmd)))
     this))
 
 (defn new-delegator [writer]
-  (Delegator. writer (priority-map) false))
+  (Delegator. writer (priority-map) false nil))
 
 (defn set-inhibition
   "When inhibited the delegator keeps delegating events but doesn't delegate
@@ -56,31 +58,89 @@
 (defn set-writer [delegator writer]
   (assoc delegator :writer writer))
 
-(defn- invoke-handler [protocol method handler & args]
+(defn set-stats
+  "Enable collecting per-handler timings into the given HandlerStats instance
+  (nil disables it)."
+  [delegator stats]
+  (assoc delegator :stats stats))
+
+(defn set-budget
+  "Limit the time the ActionHandlers have for choosing an action to the given
+  ActionBudget (nil removes the limit).  When the deadline passes the rest of
+  the handlers are skipped and (fallback) is the action, as it is when a
+  search gave up because of the deadline (see search-aborted!) and the
+  handler's action might be based on it."
+  [delegator budget fallback]
+  (assoc delegator :budget budget :budget-fallback fallback))
+
+(defn- budget-fallback [delegator]
+  (when-let [fallback (:budget-fallback delegator)]
+    (log/warn "action budget exceeded, using fallback action")
+    (fallback)))
+
+(def ^:private handler-name
+  (memoize
+    (fn [^Class klass]
+      (-> (clojure.lang.Compiler/demunge (.getName klass))
+          (string/replace #"/(reify|fn)--\d+" "")
+          (string/replace #"--\d+$" "")))))
+
+(defn- invoke-timed [^HandlerStats stats protocol method handler args]
+  (let [alloc-start (HandlerStats/allocatedBytes)
+        start (System/nanoTime)]
+    (try
+      (apply method handler args)
+      (finally
+        (.record stats (handler-name (class handler))
+                 (.getSimpleName ^Class (:on-interface protocol))
+                 (- (System/nanoTime) start)
+                 (- (HandlerStats/allocatedBytes) alloc-start))))))
+
+(defn- invoke-handler [stats protocol method handler & args]
   ;(log/debug "testing handler" handler " for " protocol)
   (if (satisfies? protocol handler)
     (try
       ;(log/debug "invoking handler" handler)
-      (apply method handler args)
+      (if stats
+        (invoke-timed stats protocol method handler args)
+        (apply method handler args))
       (catch Exception e
         (log/error e "Delegator caught handler exception")))))
 
+(defn- invoke-budgeted
+  "Like invoke-handler, counts an overrun for the handler if the deadline
+  passed during the call."
+  [^ActionBudget budget stats protocol method handler & args]
+  (if (and budget (not (deadline-passed?)))
+    (try
+      (apply invoke-handler stats protocol method handler args)
+      (finally
+        (if (deadline-passed?)
+          (.overrun budget (handler-name (class handler))))))
+    (apply invoke-handler stats protocol method handler args)))
+
 (defn- invoke-event
   [protocol method delegator & args]
   (doseq [[h _] (:handlers delegator)]
-    (apply invoke-handler protocol method h args)))
+    (apply invoke-handler (:stats delegator) protocol method h args)))
 
 (defn- invoke-prompt
   [protocol method delegator & args]
   (loop [[handler & more-handlers] (keys (:handlers delegator))]
     ;(log/debug "invoking next prompt handler" handler)
-    (if-some [res (apply invoke-handler protocol method handler args)]
-      res
-      (if (seq more-handlers)
-        (recur more-handlers)
-        (throw (IllegalStateException.
-                 (str "No handler responded to prompt of "
-                      (:on-interface protocol))))))))
+    (if (deadline-passed?)
+      (budget-fallback delegator)
+      (if-some [res (apply invoke-budgeted (if *deadline* (:budget delegator))
+                           (:stats delegator) protocol method handler args)]
+        (if (search-aborted?)
+          (budget-fallback delegator)
+          res)
+        (cond
+          (seq more-handlers) (recur more-handlers)
+          (deadline-passed?) (budget-fallback delegator)
+          :else (throw (IllegalStateException.
+                         (str "No handler responded to prompt of "
+                              (:on-interface protocol)))))))))
 
 (defn- enter-position [s] (str (to-position s) \.))
 
@@ -304,11 +364,33 @@
 (defyesnohandler :public PayDamageHandler
   (pay-damage [handler ^String text]))
 
+(defn- action-type [action]
+  (some-> action typekw name))
+
+(defn commit-action
+  "Notifies the ActionChosenHandlers about the action and writes it to the
+  terminal (unless inhibited)."
+  [delegator action]
+  (when-not (:inhibited delegator)
+    (if (JfrEvents/enabled)
+      (JfrEvents/setAction (action-type action)))
+    (action-chosen delegator action)
+    (->> action trigger (write delegator)))
+  delegator)
+
+(defn- budget-nanos [delegator]
+  (some-> ^ActionBudget (:budget delegator) .budgetNanos))
+
 (defn- respond-action [protocol method delegator & args]
   (if-not (:inhibited delegator)
-    (let [action (apply invoke-prompt protocol method delegator args)]
-      (action-chosen delegator action)
-      (->> action trigger (write delegator)))))
+    (commit-action delegator
+                   (with-jfr-event [CHOOSE_ACTION action-type]
+                     (with-deadline (budget-nanos delegator)
+                       (let [action (apply invoke-prompt protocol method
+                                           delegator args)]
+                         (some-> ^ActionBudget (:budget delegator)
+                                 (.actionChosen (not (deadline-passed?))))
+                         action))))))
 
 (defmacro ^:private defactionhandler [kind protocol & proto-methods]
   `(defprotocol-delegated ~kind bothack.actions.IAction respond-action
@@ -317,6 +399,18 @@
 (defactionhandler :public ActionHandler
   (choose-action [handler ^bothack.bot.IGame gamestate]))
 
+(defn speculate-action
+  "Asks the ActionHandlers for an action for a hypothetical game state, without
+  writing it or notifying anyone about it.  Returns nil if no handler chose an
+  action."
+  [delegator game]
+  (try
+    (with-deadline (budget-nanos delegator)
+      (invoke-prompt ActionHandler choose-action
+                     (assoc delegator :stats nil :budget nil
+                            :budget-fallback nil) game))
+    (catch IllegalStateException _ nil)))
+
 (defmacro ^:private defprompthandler [kind protocol & proto-methods]
   `(defprotocol-delegated ~kind String
      (partial respond-escapable newline-terminate)
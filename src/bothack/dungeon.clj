@@ -7,7 +7,8 @@
             [bothack.level :refer :all]
             [bothack.tile :refer :all]
             [bothack.position :refer :all]
-            [bothack.delegator :refer :all]))
+            [bothack.delegator :refer :all])
+  (:import [bothack RoomFill]))
 
 (defn- next-branch-id [game]
   (keyword (str "unknown-" ((fnil inc 0) (:last-branch-no game)))))
@@ -538,15 +539,32 @@
        (= \@ (:glyph tile-or-monster))
        (= :white (:color tile-or-monster))))
 
+(defn- update-rectangle
+  "Update the Tiles of the current level in the rectangle by applying update-fn
+  to their current value and args, row by row"
+  [game NW-corner SE-corner update-fn & args]
+  (update-curlvl
+    game update :tiles
+    (fn [tiles]
+      (reduce (fn [tiles y]
+                (update tiles (dec y)
+                        (fn [row]
+                          (persistent!
+                            (reduce #(assoc! %1 %2 (apply update-fn (nth %1 %2)
+                                                          args))
+                                    (transient row)
+                                    (range (:x NW-corner)
+                                           (inc (:x SE-corner))))))))
+              tiles
+              (range (:y NW-corner) (inc (:y SE-corner)))))))
+
 (defn- room-rectangle [game NW-corner SE-corner kind]
   (log/debug "room rectangle:" NW-corner SE-corner kind)
   (when (< 20 (max (- (:x SE-corner) (:x NW-corner))
                    (- (:y SE-corner) (:y NW-corner))))
     (log/error "spilled room at" (:dlvl game) (branch-key game)))
   (as-> game res
-    (reduce #(update-at %1 %2 assoc :room kind)
-            res
-            (rectangle NW-corner SE-corner))
+    (update-rectangle res NW-corner SE-corner assoc :room kind)
     (if (shops kind)
       (reduce #(update-at %1 %2 assoc :feature :wall)
               res
@@ -557,41 +575,42 @@
 (defn- boundary? [tile]
   (or (wall? tile) (door? tile) (:dug tile)))
 
-(defn- missing-wall? [level tile]
-  (if-not (boundary? tile)
-    (let [nbrs (neighbors level tile)
-          vert (filter #(= (:x %) (:x tile)) nbrs)
-          horiz (filter #(= (:y %) (:y tile)) nbrs)]
-      (or (and (less-than? 3 (filter boundary? nbrs))
-               (some boundary? vert)
-               (some boundary? horiz))
-          (every? boundary? vert)
-          (every? boundary? horiz)))))
+(defn- room-masks
+  "Returns [stop allowed] RoomFill masks of the level for the room floodfill.
+  The fill doesn't spread from doors, walls and tiles that look like missing
+  walls (see RoomFill/missingWalls) and doesn't spread to blank, dug and
+  corridor tiles."
+  [level]
+  (let [boundary (RoomFill/newMask)
+        stop (RoomFill/newMask)
+        allowed (RoomFill/newMask)]
+    (doseq [row (:tiles level)
+            tile row
+            :let [x (:x tile) y (:y tile)]]
+      (if (boundary? tile)
+        (RoomFill/set boundary x y))
+      (if (or (wall? tile) (door? tile))
+        (RoomFill/set stop x y))
+      (if-not (or (blank? tile) (:dug tile) (corridor? tile))
+        (RoomFill/set allowed x y)))
+    (let [missing (RoomFill/missingWalls boundary)]
+      (dotimes [i (alength stop)]
+        (aset stop i (bit-or (aget stop i) (aget missing i)))))
+    [stop allowed]))
 
 (defn- floodfill-room [game pos kind]
   (log/debug "room floodfill from:" pos "type:" kind)
   (let [level (curlvl game)
-        origin (at level pos)]
-    (loop [closed #{}
-           NW-corner origin
-           SE-corner origin
-           open (if (shopkeeper-look? game origin)
-                  (set (including-origin neighbors level origin))
-                  #{origin})]
-      ;(log/debug (count open) open)
-      (if-let [x (first open)]
-        (recur (conj closed x)
-               {:x (min (:x NW-corner) (:x x))
-                :y (min (:y NW-corner) (:y x))}
-               {:x (max (:x SE-corner) (:x x))
-                :y (max (:y SE-corner) (:y x))}
-               (if (or (door? x) (wall? x) (missing-wall? level x))
-                 (disj open x)
-                 (into (disj open x)
-                       ; walking triggers more refloods to mark unexplored tiles
-                       (remove (some-fn blank? :dug corridor? closed)
-                               (neighbors level x)))))
-        (room-rectangle game NW-corner SE-corner kind)))))
+        origin (at level pos)
+        seeds (RoomFill/newMask)
+        [^longs stop ^longs allowed] (room-masks level)]
+    (doseq [{:keys [x y]} (if (shopkeeper-look? game origin)
+                            (including-origin neighbors origin)
+                            [origin])]
+      (RoomFill/set seeds x y))
+    ; walking triggers more refloods to mark unexplored tiles
+    (let [[x1 y1 x2 y2] (RoomFill/bounds (RoomFill/fill seeds stop allowed))]
+      (room-rectangle game (position x1 y1) (position x2 y2) kind))))
 
 (defn reflood-room [game pos]
   (let [tile (at-curlvl game pos)]
@@ -626,56 +645,86 @@
         (update-at res (:last-position game) assoc :room nil)
         res)))
 
-(defn- match-level
-  "Returns true if the level matches the blueprint's :dlvl, :branch and :tag
-  (if present)"
-  [game level blueprint]
-  (and (or (not (:role blueprint))
-           (= (:role (:player game)) (:role blueprint)))
-       (or (not (:branch blueprint))
-           (= (:branch blueprint) (branch-key game level)))
-       (or (not (:dlvl blueprint))
-           (= (:dlvl blueprint) (:dlvl level)))
-       (or (not (:tag blueprint))
-           ((:tags level) (:tag blueprint)))))
+(defn- mark-feature [feature]
+  (fn [tile]
+    (assoc tile :seen true :feature
+           (cond (= :door-secret feature)
+                 (if ((some-fn unknown? wall?) tile)
+                   :door-secret
+                   (:feature tile))
+                 (= :cloud feature) feature
+                 :else (or (:feature tile) feature)))))
+
+(def ^:private blueprint-patch
+  "Compiles the tile changes of a blueprint (undiggable tiles, cutoff
+  rows/columns and features) into {row-index [[x update-fn] ...]}"
+  (memoize
+    (fn [blueprint]
+      (let [rock #(assoc % :feature :rock :undiggable true :seen true)
+            patch (reduce (fn [patch [{:keys [x y]} f]]
+                            (update-in patch [(dec y) x]
+                                       #(if % (comp f %) f)))
+                          {}
+                          (concat (for [pos (:undiggable-tiles blueprint)]
+                                    [pos #(assoc % :undiggable true)])
+                                  (for [x (:cutoff-cols blueprint)
+                                        y (range 1 22)]
+                                    [(position x y) rock])
+                                  (for [x (range 0 80)
+                                        y (:cutoff-rows blueprint)]
+                                    [(position x y) rock])
+                                  (for [[pos feature] (:features blueprint)]
+                                    [pos (mark-feature feature)])))]
+        (into {} (for [[row fs] patch]
+                   [row (vec (sort-by key fs))]))))))
 
 (defn- apply-blueprint [level blueprint]
   (log/debug "applying blueprint" (select-keys blueprint [:branch :tag :dlvl]))
   (as-> level res
-    (reduce #(update-at %1 %2 assoc :undiggable true)
-            res
-            (:undiggable-tiles blueprint))
-    (reduce #(update-at %1 %2
-                        assoc :feature :rock :undiggable true :seen true)
-            res
-            (for [x (:cutoff-cols blueprint)
-                  y (range 1 22)]
-              (position x y)))
-    (reduce #(update-at %1 %2
-                        assoc :feature :rock :undiggable true :seen true)
-            res
-            (for [x (range 0 80)
-                  y (:cutoff-rows blueprint)]
-              (position x y)))
-    (reduce (fn mark-feature [level [pos feature]]
-              (update-at level pos assoc :seen true :feature
-                         (cond (= :door-secret feature)
-                               (if ((some-fn unknown? wall?) (at level pos))
-                                 :door-secret
-                                 (:feature (at level pos)))
-                               (= :cloud feature) feature
-                               :else (or (:feature (at level pos)) feature))))
-            res
-            (:features blueprint))
+    (update res :tiles
+            (fn [tiles]
+              (reduce-kv (fn [tiles row fs]
+                           (update tiles row
+                                   #(persistent!
+                                      (reduce (fn [row [x f]]
+                                                (assoc! row x (f (nth row x))))
+                                              (transient %)
+                                              fs))))
+                         tiles
+                         (blueprint-patch blueprint))))
     (reduce (fn add-monster [level [pos monster]]
               (reset-monster level (known-monster (:x pos) (:y pos) monster)))
             res
             (:monsters blueprint))))
 
+(def ^:private blueprint-index
+  "{branch {dlvl {tag {role [[order blueprint] ...]}}}}, nil for keys the
+  blueprint doesn't restrict"
+  (reduce (fn [index [order blueprint]]
+            (blueprint-patch blueprint)
+            (update-in index ((juxt :branch :dlvl :tag :role) blueprint)
+                       (fnil conj []) [order blueprint]))
+          {}
+          (map-indexed vector blueprints)))
+
 (defn- match-blueprint
-  "Find and apply a matching blueprint to the level or return nil"
+  "Find and apply a matching blueprint to the level or return nil.  The first
+  blueprint (in the order of bothack.level/blueprints) whose :dlvl, :branch,
+  :tag and :role match (if present) is used."
   [game level]
-  (when-let [blueprint (find-first (partial match-level game level) blueprints)]
+  (when-let [[_ blueprint] (min-by first
+                                   (for [branch [(branch-key game level) nil]
+                                         :let [by-dlvl (blueprint-index branch)]
+                                         :when by-dlvl
+                                         dlvl [(:dlvl level) nil]
+                                         :let [by-tag (by-dlvl dlvl)]
+                                         :when by-tag
+                                         tag (cons nil (:tags level))
+                                         :let [by-role (by-tag tag)]
+                                         :when by-role
+                                         role [(:role (:player game)) nil]
+                                         entry (by-role role)]
+                                     entry))]
     (log/debug "matched blueprint, level:" (:dlvl level)
                "; branch:" (branch-key game level) "; tags:" (:tags level))
     (-> level
@@ -19,7 +19,8 @@
             [bothack.sokoban :refer :all]
             [bothack.util :refer :all]
             [bothack.pathing :refer :all]
-            [bothack.delegator :refer :all]))
+            [bothack.delegator :refer :all])
+  (:import (bothack JfrEvents)))
 
 (defn- update-game-status [game status]
   (->> (keys game) (select-keys status) (into game)))
@@ -319,7 +320,10 @@
         (swap! game update :player into (:cursor frame)))
       FullFrameHandler
       (full-frame [_ frame]
-        (swap! game update-map frame))
+        (with-jfr-event UPDATE_MAP
+          (swap! game update-map frame))
+        (if (JfrEvents/enabled)
+          (JfrEvents/setContext (or (:turn @game) 0) (:dlvl @game))))
       PromptResponseHandler
       (response-chosen [_ method res]
         (when (or (= genocide-class method) ;FIXME doesn't consider cursed geno!
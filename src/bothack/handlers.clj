@@ -4,20 +4,29 @@
             [bothack.dungeon :refer :all]
             [bothack.delegator :refer :all]))
 
+(def ^:dynamic *deferred-changes*
+  "When bound to an atom, handler (de)registrations are collected in it as
+  fns instead of being sent to the delegator - to be applied later or thrown
+  away (see bothack.speculation)"
+  nil)
+
+(defn- send-delegator [bh f & args]
+  (if *deferred-changes*
+    (swap! *deferred-changes* conj #(apply send (:delegator bh) f args))
+    (apply send (:delegator bh) f args))
+  bh)
+
 (defn register-handler
   [bh & args]
-  (send (:delegator bh) #(apply register % args))
-  bh)
+  (send-delegator bh #(apply register % args)))
 
 (defn deregister-handler
   [bh handler]
-  (send (:delegator bh) deregister handler)
-  bh)
+  (send-delegator bh deregister handler))
 
 (defn replace-handler
   [bh handler-old handler-new]
-  (send (:delegator bh) switch handler-old handler-new)
-  bh)
+  (send-delegator bh switch handler-old handler-new))
 
 (defn update-before-action
   "Before the next action is chosen call (apply swap! game f args).  This
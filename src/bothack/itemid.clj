@@ -52,19 +52,51 @@
                         [identity #(+ % (quot % 3))])]
     [cost cha (-> cost id-charge sucker-charge charge)]))
 
+(defn- facts-db
+  "Same as (apply db facts) but builds the unindexed set and the indexes of each
+  relation in bulk instead of updating the whole DB fact by fact"
+  [facts]
+  (into {} (for [[rel rel-facts] (group-by first facts)
+                 :let [tuples (map rest rel-facts)]]
+             [(rel-key rel)
+              (into {:clojure.core.logic.pldb/unindexed (set tuples)}
+                    (for [[indexed? i] (map vector (rel-indexes rel) (range))
+                          :when indexed?]
+                      [i (persistent!
+                           (reduce-kv #(assoc! %1 %2 (set %3))
+                                      (transient {})
+                                      (group-by #(nth % i) tuples)))]))])))
+
+;; facts-db depends on the representation of pldb DBs in core.logic 0.8.8
+(assert (let [sample [[base-cha-cost "dagger" 5 8] [base-cha-cost "dagger" 0 2]
+                      [base-cha-cost "knife" 0 2]
+                      [appearance-name "runed dagger" "elven dagger"]
+                      [appearance-name "crude dagger" "orcish dagger"]]]
+          (= (apply db sample) (facts-db sample)))
+        "facts-db doesn't match (apply db facts) with this core.logic version")
+
 (def ^:private initial
-  "DB that contains the initial possibilities for costs and appearances of items"
-  (apply db (concat (for [[base cha cost] cost-data]
-                      [base-cha-cost base cha cost])
-                    (for [{:keys [name appearances] :as i} items
-                          res (if-not (and (:artifact i) (:base i))
-                                (concat (for [a appearances]
-                                          [appearance-name a name])
-                                        (for [a appearances
-                                              n (item-names a)]
-                                          [appearance-name n name])))
-                          :when res]
-                      res))))
+  "DB that contains the initial possibilities for costs and appearances of
+  items.  Built on first use (or in the background by preload-db)."
+  (delay
+    (facts-db (concat (for [[base cha cost] cost-data]
+                        [base-cha-cost base cha cost])
+                      (for [{:keys [name appearances] :as i} items
+                            res (if-not (and (:artifact i) (:base i))
+                                  (concat (for [a appearances]
+                                            [appearance-name a name])
+                                          (for [a appearances
+                                                n (item-names a)]
+                                            [appearance-name n name])))
+                            :when res]
+                        res)))))
+
+(defn preload-db
+  "Starts building the initial item identification DB in the background, so
+  it's ready before the first item query."
+  []
+  (future @initial)
+  nil)
 
 (def blind-appearances
   (into {} (for [[generic-name typekw glyph] [["stone" :gem \*]
@@ -76,7 +108,7 @@
              [generic-name ((kw->itemtype typekw) {:glyph glyph})])))
 
 (defmacro query [discoveries qr]
-  `(with-dbs [@#'initial ~discoveries] ~qr))
+  `(with-dbs [@@#'initial ~discoveries] ~qr))
 
 (defn appearance-of [item]
   (or (and (item-names (:name item)) (:generic item))
@@ -0,0 +1,66 @@
+(ns bothack.journal
+  "Records semantic game events (chosen actions with their reasons, prompt
+  responses, messages, dlvl changes and deaths) into a binary Journal, for
+  post-mortems without debug logging.  Use bothack.JournalReader to read it."
+  (:require [clojure.java.io :as io]
+            [clojure.string :as string]
+            [clojure.tools.logging :as log]
+            [bothack.action :refer :all]
+            [bothack.delegator :refer :all]
+            [bothack.util :refer :all])
+  (:import [bothack Journal Journal$Type]))
+
+(def ^:private segment-bytes (* 8 1024 1024))
+
+(def ^:private ring-size 65536)
+
+(defn new-journal
+  "Opens a new journal in the given directory."
+  [dir]
+  (Journal. (io/file dir) segment-bytes ring-size))
+
+(def ^:private prompt-names
+  "Prompt protocol method => its name"
+  (delay (into {} (for [[sym v] (ns-publics 'bothack.delegator)
+                        :when (fn? @v)]
+                    [@v (name sym)]))))
+
+(defn- journal-event [^Journal journal game type & fields]
+  (.append journal type (int (or (:turn @game) 0))
+           (into-array String (map str fields))))
+
+(defn journal-handler
+  "Handler writing the game events into the journal, closes it when the game
+  ends."
+  [{:keys [game] :as bh} ^Journal journal]
+  (reify
+    GameStateHandler
+    (started [_]
+      (journal-event journal game Journal$Type/GAME_START))
+    (ended [_]
+      (journal-event journal game Journal$Type/GAME_END (:dlvl @game))
+      (.close journal)
+      (if (pos? (.dropped journal))
+        (log/warn "journal dropped" (.dropped journal) "events")))
+    ActionChosenHandler
+    (action-chosen [_ action]
+      (journal-event journal game Journal$Type/ACTION
+                     (some-> action typekw name)
+                     (trigger action)
+                     (string/join " / " (:reason action))))
+    PromptResponseHandler
+    (response-chosen [_ method res]
+      (journal-event journal game Journal$Type/PROMPT
+                     (get @prompt-names method method) res))
+    ToplineMessageHandler
+    (message [_ text]
+      (journal-event journal game Journal$Type/MESSAGE text)
+      (if (.startsWith ^String text "You die")
+        (journal-event journal game Journal$Type/DEATH (:dlvl @game) text)))
+    MultilineMessageHandler
+    (message-lines [_ lines]
+      (journal-event journal game Journal$Type/MESSAGE
+                     (string/join "\n" lines)))
+    DlvlChangeHandler
+    (dlvl-changed [_ old-dlvl new-dlvl]
+      (journal-event journal game Journal$Type/DLVL_CHANGE old-dlvl new-dlvl))))
@@ -4,8 +4,10 @@
   terminal emulation."
   (:require [bothack.delegator :refer :all]
             [bothack.util :refer :all]
-            [bothack.term :refer [set-delegator]])
+            [bothack.term :refer [set-delegator]]
+            [clojure.tools.logging :as log])
   (:import [bothack.NHTerminal]
+           [bothack NioSocket]
            [de.mud.jta PluginLoader Plugin PluginConfig]
            [de.mud.jta.event SocketRequest OnlineStatusListener
                              ConfigurationRequest]
@@ -46,6 +48,15 @@
                                      (config-get config :nh-command)))))
     (new-jta pl protocol config delegator)))
 
+(defmethod init-jta :pty [config delegator]
+  (let [pl (plugin-loader delegator)
+        protocol (.addPlugin pl "ScriptShell" "protocol")]
+    (.broadcast pl (ConfigurationRequest.
+                     (doto (PluginConfig. (Properties.))
+                       (.setProperty "Shell" "command"
+                                     (config-get config :nh-command)))))
+    (new-jta pl protocol config delegator)))
+
 (defmethod init-jta :ssh [config delegator]
   (let [pl (plugin-loader delegator)
         protocol (.addPlugin pl "JTAJSch" "protocol")]
@@ -59,7 +70,7 @@
 
 (defmethod init-jta :telnet [config delegator]
   (let [pl (plugin-loader delegator)]
-    (.addPlugin pl "Socket" "socket")
+    (.addPlugin pl "NioSocket" "socket")
     (new-jta pl (.addPlugin pl "Telnet" "protocol") config delegator)))
 
 (defmethod init-jta :default [_ _]
@@ -71,10 +82,13 @@
 
 (defn stop-jta [jta]
   (.broadcast (:pl jta) (SocketRequest.)) ; disconnect
+  (doseq [p (vals (.getPlugins ^PluginLoader (:pl jta)))
+          :when (instance? NioSocket p)]
+    (log/info "socket stats:" (str p)))
   jta)
 
 (defn raw-write
   "Writes a string to the terminal back-end."
   [jta ch]
   (io! (.write ^bothack.NHTerminal (:terminal jta)
-               (->> ch str (map byte) byte-array))))
+               (.getBytes (str ch) "ISO-8859-1"))))
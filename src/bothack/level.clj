@@ -3,7 +3,8 @@
             [bothack.montype :refer :all]
             [bothack.position :refer :all]
             [bothack.util :refer :all]
-            [bothack.tile :refer :all]))
+            [bothack.tile :refer :all])
+  (:import [bothack WeakIdentityCache]))
 
 (defn- initial-tiles []
   (->> (for [y (range 21)
@@ -495,6 +496,44 @@
     :features {{:x 29 :y 6} :door-secret
                {:x 52 :y 6} :door-secret}}])
 
+(defn- grid-cache
+  "Memoizes (f tiles) for each tiles vector (by identity, without keeping the
+  tiles alive) so levels sharing a map share the result"
+  [f]
+  (let [^WeakIdentityCache cache (WeakIdentityCache.)]
+    (fn [tiles]
+      (or (.get cache tiles)
+          (let [grid (f tiles)]
+            (.put cache tiles grid)
+            grid)))))
+
+(defmacro ^:private defgrid
+  "Defines a cached fn of tiles returning a flat 21*80 array of (tile-fn tile).
+  Elements are coerced with the array-type fn (int, char, ...)."
+  [fname array-type tile-fn]
+  (let [grid (with-meta (gensym "grid__") {:tag (symbol (str array-type \s))})]
+    `(def ~(with-meta fname {:private true})
+       (grid-cache
+         (fn [tiles#]
+           (let [~grid (~(symbol (str array-type "-array")) (* 21 80))]
+             (loop [y# 0]
+               (when (< y# 21)
+                 (let [row# (nth tiles# y#)]
+                   (loop [x# 0]
+                     (when (< x# 80)
+                       (aset ~grid (+ (* y# 80) x#)
+                             (~array-type (~tile-fn (nth row# x#))))
+                       (recur (inc x#)))))
+                 (recur (inc y#))))
+             ~grid))))))
+
+(defgrid feature-grid int
+  #(enum-ordinal bothack.bot.dungeon.Feature (:feature %)))
+
+(defgrid glyph-grid char :glyph)
+
+(defgrid seen-grid boolean :seen)
+
 (defrecord Level
   [dlvl
    branch-id
@@ -513,7 +552,10 @@
   (monsterAt [level pos] (get-in level [:monsters (position pos)]))
   (monsters [level] (:monsters level))
   (branch [level] (:branch-id level))
-  (dlvl [level] (:dlvl level)))
+  (dlvl [level] (:dlvl level))
+  (featureGrid [level] (feature-grid (:tiles level)))
+  (glyphGrid [level] (glyph-grid (:tiles level)))
+  (seenGrid [level] (seen-grid (:tiles level))))
 
 (defmethod print-method Level [level w]
   (.write w (str "#bothack.level.Level"
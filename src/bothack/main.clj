@@ -25,8 +25,11 @@
             [bothack.util :refer :all]
             [bothack.jta :refer [raw-write]]
             [bothack.delegator :refer :all]
+            [bothack.supervisor :refer [recycle-status]]
+            [bothack.tracker :refer [clear-danger-maps]]
             [clojure.java.io :as io]
             [cemerick.pomegranate :as pom])
+  (:import [java.lang.management ManagementFactory])
   (:gen-class))
 
 (defn- log-state [game]
@@ -39,15 +42,20 @@
           :when (-> l .getName (.endsWith ".jar"))]
     (pom/add-classpath l)))
 
-(declare init-ui)
+(declare init-ui run-worker)
 
 (defn -main [& args] []
   (register-javabot-jars)
-  (->> (take 1 args) (apply new-bh) init-ui start
-       (def a "the BotHack instance (REPL helper)")))
+  (let [new-instance #(->> (take 1 args) (apply new-bh) init-ui)
+        bh (new-instance)]
+    (if (config-get (:config bh) :worker false)
+      (run-worker bh new-instance)
+      (->> bh start (def a "the BotHack instance (REPL helper)")))))
 
 ; shorthand functions for REPL use
-(defn- w "raw write" [ch] (raw-write (:jta a) ch))
+(defn- w "raw write"
+  ([ch] (w a ch))
+  ([bh ch] (raw-write (:jta bh) ch)))
 
 (defn- r "redraw" [] (w (ctrl \r)))
 
@@ -74,11 +82,23 @@
                 (log/debug "making initial game state")
                 (new-game)))
 
-(defn- q []
-  (w (str esc esc esc esc "#quit\nyq"))
-  (System/exit 0))
+(def ^:private quit-timeout
+  "How long a worker waits for the game to end after quitting (ms)"
+  60000)
 
-(defn- quit-when-looping []
+(defn- q
+  "Quits the game.  Returns nil so ActionHandlers can return it."
+  ([] (q a))
+  ([bh]
+   (w bh (str esc esc esc esc "#quit\nyq"))
+   (if-not (config-get (:config bh) :worker false)
+     (System/exit 0))
+   (future (if (nil? (deref (:game-over bh) quit-timeout nil))
+             (if (deliver (:game-over bh) true)
+               (log/warn "game didn't end after quitting, abandoning it"))))
+   nil))
+
+(defn- quit-when-looping [bh]
   (let [actions-this-turn (atom 0)]
     (reify ActionHandler
       (choose-action [_ game]
@@ -87,44 +107,50 @@
           (reset! actions-this-turn 0))
         (when (< 1000 @actions-this-turn)
           (log/error "stuck: too many actions within one game turn - quitting")
-          (q))))))
+          (q bh))))))
 
-(defn- quit-when-stuck []
+(defn- quit-when-stuck [bh]
   (reify ActionHandler
     (choose-action [_ game]
       (log/error "No action chosen - quitting")
-      (q))))
+      (q bh))))
 
-(defn- quit-when-idle []
-  (let [chosen (atom true)]
-    (future (while true
-              (Thread/sleep (- (* 3 60 1000) 50000))
-              (when-not (:inhibited @(:delegator a))
+(defn- quit-when-idle
+  "Watchdog of the instance's game, stops when the game ends or is abandoned"
+  [{:keys [game-over] :as bh}]
+  (let [chosen (atom true)
+        over? #(deref game-over % false)]
+    (future (while (not (over? (- (* 3 60 1000) 50000)))
+              (when-not (:inhibited @(:delegator bh))
                 (if-not @chosen
                   (do (log/warn "attempting to unstuck")
-                      (w "#")
-                      (unpause a)
-                      (Thread/sleep 50000)
-                      (when-not @chosen
+                      (w bh "#")
+                      (unpause bh)
+                      (when-not (or (over? 50000) @chosen)
                         (log/error "3+ min idle - quitting")
-                        (q)))
+                        (q bh)))
                   (reset! chosen false)))))
-    (reify ActionChosenHandler
+    (reify
+      ActionChosenHandler
       (action-chosen [_ _]
-        (reset! chosen true)))))
+        (reset! chosen true))
+      GameStateHandler
+      (started [_])
+      (ended [_]
+        (deliver game-over true)))))
 
 (defn- init-ui [{:keys [config] :as bh}]
   (when-not (config-get (:config bh) :no-exit false)
-    (register-handler bh (dec priority-top) (quit-when-idle))
-    (register-handler bh (dec priority-top) (quit-when-looping))
-    (register-handler bh (inc priority-bottom) (quit-when-stuck)))
+    (register-handler bh (dec priority-top) (quit-when-idle bh))
+    (register-handler bh (dec priority-top) (quit-when-looping bh))
+    (register-handler bh (inc priority-bottom) (quit-when-stuck bh)))
   (register-handler bh (dec priority-top)
     (reify ActionHandler
       (choose-action [this game]
         (when (and (< 100 (:turn game))
                    (config-get config :quit-resumed false))
           (log/error "Resumed game with :quit-resumed in config - quitting")
-          (q))
+          (q bh))
         (deregister-handler bh this)
         nil)))
   (register-handler bh (dec priority-top)
@@ -132,7 +158,8 @@
       GameStateHandler
       (ended [_]
         (log/info "Game ended")
-        (when-not (config-get config :no-exit false)
+        (when-not (or (config-get config :no-exit false)
+                      (config-get config :worker false))
           (log/info "Exiting")
           (System/exit 0)))
       (started [_]
@@ -186,6 +213,41 @@
       (redraw [_ frame]
         (println frame)))))
 
+(defn- heap-used-mb []
+  (System/gc)
+  (quot (.getUsed (.getHeapMemoryUsage (ManagementFactory/getMemoryMXBean)))
+        (* 1024 1024)))
+
+(defn- run-worker
+  "Plays games one after another with new instances in this JVM, keeping the
+  loaded and JIT-compiled code.  Exits after :worker-games games or with
+  recycle-status when the heap grows over :worker-max-heap-mb, for
+  bothack.supervisor to start a fresh JVM."
+  [bh new-instance]
+  (loop [bh bh
+         played 1]
+    (let [config (:config bh)]
+      (register-handler bh (reify GameStateHandler
+                             (started [_])
+                             (ended [_]
+                               (deliver (:game-over bh) true))))
+      (alter-var-root #'a (constantly bh))
+      (start bh)
+      @(:game-over bh)
+      (stop bh) ; also stops the instance's per-game threads
+      (clear-path-caches)
+      (clear-danger-maps)
+      (let [heap (heap-used-mb)
+            max-heap (config-get config :worker-max-heap-mb nil)]
+        (log/info "worker finished game" played "- heap used:" heap "MB")
+        (cond
+          (some->> (config-get config :worker-games nil) (>= played))
+          (System/exit 0)
+          (and max-heap (< max-heap heap))
+          (do (log/warn "worker heap over" max-heap "MB - recycling")
+              (System/exit recycle-status))
+          :else (recur (new-instance) (inc played)))))))
+
 (defn print-tiles
   "Print map, with pred overlayed with X where pred is not true for the tile.
   If f is supplied print (f tile) for matching tiles, else the glyph."
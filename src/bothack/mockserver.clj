@@ -0,0 +1,134 @@
+(ns bothack.mockserver
+  "A stand-in for a NetHack telnet server, for benchmarking the framework
+  without a real game.  Replays the output recorded in a ttyrec file: the
+  recorded chunks are grouped into frames and the next frame is sent every time
+  the client sends some keys, optionally after an artificial network delay.
+  When the client disconnects, the rate of key writes and the client's
+  response times (from a frame being sent to the next keys arriving) are
+  logged.
+
+  Usage: lein run -m bothack.mockserver <file.ttyrec[.gz]> [port] [latency-ms] [jitter-ms]
+
+  Then run BotHack with :interface :telnet, :host \"localhost\" and the port
+  (no :menubot).  The .ttyrec.xz files need to be uncompressed first."
+  (:require [clojure.java.io :as io]
+            [clojure.tools.logging :as log])
+  (:import [java.io DataInputStream EOFException]
+           [java.net ServerSocket Socket]
+           [java.nio ByteBuffer ByteOrder]
+           [java.util.zip GZIPInputStream]))
+
+(defn- read-chunk
+  "Returns the next {:time ms :data bytes} ttyrec record or nil at the end.  A
+  record cut short by the end of the file is logged and treated as the end."
+  [^DataInputStream in]
+  (let [hdr (byte-array 12)]
+    (if (pos? (.read in hdr 0 1))
+      (try
+        (.readFully in hdr 1 11)
+        (let [bb (.order (ByteBuffer/wrap hdr) ByteOrder/LITTLE_ENDIAN)
+              sec (.getInt bb)
+              usec (.getInt bb)
+              data (byte-array (.getInt bb))]
+          (.readFully in data)
+          {:time (+ (* 1000 sec) (quot usec 1000))
+           :data data})
+        (catch EOFException _
+          (log/warn "truncated ttyrec record at the end ignored")
+          nil)))))
+
+(defn read-ttyrec [fname]
+  (with-open [in (DataInputStream.
+                   (cond-> (io/input-stream fname)
+                     (.endsWith (str fname) ".gz") (GZIPInputStream.)))]
+    (vec (take-while some? (repeatedly #(read-chunk in))))))
+
+(defn- telnet-escape
+  "Doubles IAC (0xff) bytes so the data passes through the telnet protocol."
+  ^bytes [^bytes data]
+  (let [out (java.io.ByteArrayOutputStream. (alength data))]
+    (doseq [b data]
+      (.write out (int b))
+      (if (= -1 b)
+        (.write out (int b))))
+    (.toByteArray out)))
+
+(defn frames
+  "Groups ttyrec chunks recorded less than gap-ms apart (presumably a response
+  to a single key) into telnet-escaped frames."
+  [chunks gap-ms]
+  (->> chunks
+       (partition-all 2 1)
+       (reduce (fn [groups [chunk next-chunk]]
+                 (let [groups (update-in groups [(dec (count groups))]
+                                         conj (:data chunk))]
+                   (if (and next-chunk
+                            (< gap-ms (- (:time next-chunk) (:time chunk))))
+                     (conj groups [])
+                     groups)))
+               [[]])
+       (mapv #(telnet-escape (byte-array (mapcat seq %))))))
+
+(defn- percentile [sorted p]
+  (if (seq sorted)
+    (nth sorted (min (dec (count sorted))
+                     (long (* (count sorted) (/ p 100)))))))
+
+(defn- log-stats [keys-received start response-times]
+  (let [secs (/ (- (System/nanoTime) start) 1e9)
+        sorted (vec (sort response-times))]
+    (log/info (format "%d key writes in %.1f s (%.1f/s), client response time p50 %.2f ms, p99 %.2f ms, max %.2f ms"
+                      keys-received secs (/ keys-received (max secs 1e-9))
+                      (/ (or (percentile sorted 50) 0) 1e6)
+                      (/ (or (percentile sorted 99) 0) 1e6)
+                      (/ (or (peek sorted) 0) 1e6)))))
+
+(defn- replay [^Socket client frames {:keys [latency jitter]}]
+  (let [in (.getInputStream client)
+        out (.getOutputStream client)
+        buf (byte-array 1024)
+        delay! #(let [ms (+ latency (rand-int (inc jitter)))]
+                  (if (pos? ms) (Thread/sleep ms)))
+        send-frame! (fn [^bytes frame]
+                      (delay!)
+                      (doto out (.write frame) (.flush))
+                      (System/nanoTime))
+        start (System/nanoTime)]
+    (loop [[_ & more] frames
+           sent-at (send-frame! (first frames))
+           keys-received 0
+           response-times []]
+      (let [n (.read in buf)
+            now (System/nanoTime)]
+        (if (and (pos? n) (seq more))
+          (recur more
+                 (send-frame! (first more))
+                 (inc keys-received)
+                 (conj response-times (- now sent-at)))
+          (log-stats keys-received start response-times))))))
+
+(defn serve
+  "Serves the frames to clients connecting to the port, one at a time."
+  [frames {:keys [port] :as opts}]
+  (with-open [server (ServerSocket. port)]
+    (log/info "mock server listening on port" port "with" (count frames) "frames")
+    (while true
+      (with-open [client (.accept server)]
+        (.setTcpNoDelay client true)
+        (log/info "client connected:" (.getRemoteSocketAddress client))
+        (try (replay client frames opts)
+             (catch java.io.IOException e
+               (log/info "client disconnected:" (.getMessage e))))))))
+
+(def ^:private usage
+  "usage: bothack.mockserver <file.ttyrec[.gz]> [port] [latency-ms] [jitter-ms]")
+
+(defn -main [& [fname port latency jitter]]
+  (if-let [chunks (and fname (seq (read-ttyrec fname)))]
+    (serve (frames chunks 50)
+           {:port (Integer/parseInt (or port "2323"))
+            :latency (Long/parseLong (or latency "0"))
+            :jitter (Long/parseLong (or jitter "0"))})
+    (do (if fname
+          (println fname "contains no complete ttyrec records"))
+        (println usage))))
@@ -81,6 +81,28 @@
 
 (defn slow? [m] (some-> m :type :speed (< 7)))
 
+(def ^:private unknown-attack-damage
+  "Assumed average damage of a monster of unknown type per attack round"
+  6)
+
+(defn- attack-damage [attacks]
+  (reduce + (for [{:keys [dices sides]} attacks]
+              (* (or dices 1) (inc (or sides 4)) 1/2))))
+
+(defn monster-danger
+  "Returns [reach melee ranged] - how many squares away the monster can attack
+  next turn and the expected damage of its melee and ranged attacks per player
+  turn (of normal speed)."
+  [m]
+  (if-let [{:keys [speed attacks]} (:type m)]
+    (let [rounds (/ speed 12)
+          attacks (remove (comp #{:passive} :type) attacks)
+          ranged? (comp ranged :type)]
+      [(max 1 (long (Math/ceil rounds)))
+       (double (* rounds (attack-damage (remove ranged? attacks))))
+       (double (* rounds (attack-damage (filter ranged? attacks))))])
+    [1 (double unknown-attack-damage) 0.0]))
+
 (defn leprechaun? [m]
   (= "leprechaun" (typename m)))
 
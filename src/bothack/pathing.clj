@@ -13,7 +13,9 @@
             [bothack.level :refer :all]
             [bothack.player :refer :all]
             [bothack.util :refer :all]
-            [bothack.tile :refer :all]))
+            [bothack.tile :refer :all]
+            [bothack.tracker :refer [danger-map]])
+  (:import [bothack ClusterGraph DangerMap]))
 
 (defn base-cost [level dir tile opts]
   {:pre [(and (some? level) (some? dir) (some? tile))]}
@@ -30,6 +32,8 @@
     (not (engravable? tile)) (+ 0.5)
     (cloud? tile) (+ 10)
     (:blocked tile) (+ (* 10 (:blocked tile)))
+    (:avoid-danger opts) (+ (.at ^DangerMap (:avoid-danger opts)
+                                 (:x tile) (:y tile)))
     (not (or (:dug tile) (:walked tile))) (+ 0.2)
     (and (not (:walked tile)) (floor? tile)) (+ 0.5)))
 
@@ -51,6 +55,8 @@
                 (not-any? #(move-fn % to)
                           (neighbors to))) (conj (subvec path 1) to)
            (and max-steps (< max-steps (+ delta (count path)))) nil
+           (deadline-passed?) (do (log/debug "a* deadline passed")
+                                  (search-aborted!))
            :else (recur (assoc closed node path)
                         (merge-with
                           (partial min-key first)
@@ -73,6 +79,8 @@
          (cond
            (goal? node) (subvec path 1)
            (and max-steps (< max-steps (count path))) nil
+           (deadline-passed?) (do (log/debug "dijkstra deadline passed")
+                                  (search-aborted!))
            :else (recur
                    (assoc closed node path)
                    (merge-with (partial min-key first)
@@ -83,6 +91,39 @@
                                          :when (some? action)]
                                      [nbr [(+ dist cost) node]]))))))))))
 
+(defn- dijkstra-all
+  "Like dijkstra but continues the search until all of the goal positions are
+  reached (or max-steps is exceeded or the deadline passes).  Returns a map of
+  reached goal => [cost path]."
+  [from goals move-fn max-steps]
+  (log/debug "dijkstra-all for" (count goals) "goals")
+  (loop [closed {}
+         open (priority-map-keyfn first (position from) [0])
+         found {}]
+    (if-let [[node [dist prev]] (peek open)]
+      (let [path (conj (closed prev []) node)
+            found (if (goals node)
+                    (assoc found node [dist (subvec path 1)])
+                    found)]
+        (cond
+          (= (count found) (count goals)) found
+          (deadline-passed?) (do (log/debug "dijkstra-all deadline passed")
+                                 found)
+          (and max-steps (< max-steps (count path))) (recur (assoc closed node path)
+                                                            (pop open)
+                                                            found)
+          :else (recur
+                  (assoc closed node path)
+                  (merge-with (partial min-key first)
+                              (pop open)
+                              (into {}
+                                    (for [nbr (remove closed (neighbors node))
+                                          :let [[cost action] (move-fn node nbr)]
+                                          :when (some? action)]
+                                      [nbr [(+ dist cost) node]])))
+                  found)))
+      found)))
+
 (defn needs-levi? [tile]
   (#{:pool :lava :ice :hole :trapdoor :cloud} (:feature tile)))
 
@@ -170,137 +211,194 @@
        (dare-destroy? level tile)
        (not (item? tile)))) ; don't try to break blocked doors
 
-(defn- kick-door [{:keys [player] :as game} level tile dir]
+(defmacro ^:private act
+  "The search only needs to know that a move is possible, the action is built
+  just for the edge actually taken.  Expr must never return nil."
+  [build? expr]
+  `(if ~build? ~expr true))
+
+(def ^:private possible-cache
+  "[game {[f args] possible?}]"
+  (atom nil))
+
+(defn- possible?
+  "True if (apply f game args) returns an action.  The result only depends on
+  the game so it is remembered for the last game (by identity) and the search
+  builds such actions at most once for all the edges."
+  [f game & args]
+  (let [k [f args]
+        [cached-game known] @possible-cache]
+    (if (and (identical? game cached-game) (contains? known k))
+      (known k)
+      (let [res (if (apply f game args) true)]
+        (swap! possible-cache
+               (fn [[cached-game known]]
+                 [game (assoc (if (identical? game cached-game) known {})
+                              k res)]))
+        res))))
+
+(defmacro ^:private act-maybe
+  "Like act for an (f game & args) call that may return nil"
+  [build? [f game & args]]
+  `(if ~build?
+     (~f ~game ~@args)
+     (possible? ~f ~game ~@args)))
+
+(defn- kick-door [build? {:keys [player] :as game} level tile dir]
   (if (door-open? tile)
-    [8 (with-reason "closing door to kick it"
-         (if-not (monster-at level tile)
-           (->Close dir)))]
-    [(if (:leg-hurt player) 30 6) (kick game dir)]))
+    [8 (if-not (monster-at level tile)
+         (act build? (with-reason "closing door to kick it" (->Close dir))))]
+    [(if (:leg-hurt player) 30 6) (act-maybe build? (kick game dir))]))
 
 (defn can-unlock? [game]
   (has-hands? (:player game)))
 
-(defn- enter-shop [game]
+(defn- enter-shop [build? game]
   ; TODO stash rather than drop pick if we have a bag
   (or (if-let [[slot _] (have game #{"pick-axe" "dwarvish mattock"}
                               #{:can-remove})]
-        [2 (with-reason "dropping pick to enter shop" (->Drop slot))])
+        [2 (act build? (with-reason "dropping pick to enter shop"
+                         (->Drop slot)))])
       (if-let [[slot _] (have game "ring of invisibility" #{:can-remove
                                                             :worn})]
-        [2 (with-reason "removing invis to enter shop" (->Remove slot))])
+        [2 (act build? (with-reason "removing invis to enter shop"
+                         (->Remove slot)))])
       (if-let [[slot _] (have game "cloak of invisibility" #{:can-remove
                                                              :worn})]
-        [2 (with-reason "taking off invis to enter shop" (->TakeOff slot))])))
+        [2 (act build? (with-reason "taking off invis to enter shop"
+                         (->TakeOff slot)))])))
 
-(defn pass-monster [game level to-tile dir monster opts]
+(defn- pass-monster* [build? game level to-tile dir monster opts]
   (if (or (:peaceful monster)
           (and (:friendly monster) (diagonal dir) (door? to-tile)))
     (if-not (blocked? to-tile)
       [(if (at-planes? game) 4 50)
-       (with-reason "peaceful blocker" monster
-         (fidget game level to-tile))]) ; hopefully will move
+       (act build? (with-reason "peaceful blocker" monster
+                     (fidget game level to-tile)))]) ; hopefully will move
     (if (:friendly monster)
       (if-not (:walking opts)
-        [8 (with-reason "displace friendly" monster
-              (->Move dir))])
+        [8 (act build? (with-reason "displace friendly" monster
+                         (->Move dir)))])
       (if-not (:no-fight opts)
         [(if (at-planes? game) 2 12)
-         (with-reason "pathing through hostiles" monster
-           (->Move dir))]))))
+         (act build? (with-reason "pathing through hostiles" monster
+                       (->Move dir)))]))))
+
+(defn pass-monster [game level to-tile dir monster opts]
+  (pass-monster* true game level to-tile dir monster opts))
+
+(defn- move*
+  "Returns [cost Action] for a move if it is possible, [cost true] instead if
+  not build?"
+  [build? game level from to opts]
+  (let [to-tile (at level to)
+        from-tile (at level from)
+        dir (towards from to-tile)
+        monster (monster-at level to)
+        need-levi? (or (and (:levi opts) (#{:air :water} (:branch-id game))
+                            (walkable? to-tile))
+                       (needs-levi? to-tile))]
+    (some-> (or (if (and (passable-walking? game level from-tile to-tile)
+                         (or (not (:explored opts))
+                             (:new-items to-tile) (:feature to-tile))
+                         (not (and (kickable-door? level to-tile opts)
+                                   (blocked-door level to-tile))))
+                  (if monster
+                    (pass-monster* build? game level to-tile dir monster opts)
+                    (or (and (shop? to-tile) (not (shop? from-tile))
+                             (enter-shop build? game))
+                        (if-not (or (and (:levi opts) need-levi?)
+                                    (and (:castle (:tags level))
+                                         (= (position 60 12)
+                                            (position to-tile)))
+                                    (and (polytrap? to-tile)
+                                         (not (have-mr? game)))
+                                    (and (= :sokoban (branch-key game))
+                                         (hole? to-tile))
+                                    (and (:no-traps opts) (trap? to-tile)))
+                          [0 (act build? (->Move dir))])))) ; trapdoors/holes are escapable
+                (if (kickable-door? level from-tile opts)
+                  (if-let [odir (blocked-door level from-tile)]
+                    (if (monster-at level (in-direction from-tile odir))
+                      [3 (act build? (with-reason
+                                       "waiting for monster to move to kick door at my pos"
+                                       (->Search)))]
+                      [1 (act build? (with-reason
+                                       "moving to kick blocked door at my pos"
+                                       (->Move odir)))])))
+                (if (and (edge-passable-walking? game level from-tile to-tile)
+                         need-levi? (not (boulder? to-tile)))
+                  (if-let [[slot item] (:levi opts)]
+                    (if-let [[cost move] (if monster
+                                           (pass-monster* build? game level
+                                                          to-tile dir monster
+                                                          opts)
+                                           [1 (act build? (->Move dir))])]
+                      (if (:worn item)
+                        [cost (act build? (with-reason "assuming levitation"
+                                            move))]
+                        [(+ 2 cost) (if build?
+                                      (with-reason "need levi for next move"
+                                        (make-use game slot))
+                                      (possible? make-use game slot))]))))
+                (if (and (door? to-tile)
+                         (not (:walking opts))
+                         (not (:no-kick opts)))
+                  (or (if monster
+                        (pass-monster* build? game level to-tile dir monster opts))
+                      (if (door-secret? to-tile)
+                        [10 (act build? (search 10))]) ; TODO stethoscope
+                      (and (kickable-door? level to-tile opts)
+                           (walkable? from-tile)
+                           (blocked-door level to-tile)
+                           (update (kick-door build? game level to-tile dir) 1
+                                   #(if %
+                                      (act build? (with-reason
+                                                    "the door is blocked from one side"
+                                                    %)))))
+                      (if (diagonal dir)
+                        (if (and (kickable-door? level to-tile opts)
+                                 (walkable? from-tile))
+                          (kick-door build? game level to-tile dir))
+                        (if (door-closed? to-tile)
+                          [3 (act build? (->Open dir))]
+                          (if-let [[slot i] (and (door-locked? to-tile)
+                                                 (can-unlock? game)
+                                                 (have-key game))]
+                            (if (or (dare-destroy? level to-tile)
+                                    (key? i)
+                                    (not (:minetown (:tags level))))
+                              [4 (act build? (->Unlock slot dir))])
+                            (if (and (kickable-door? level to-tile opts)
+                                     (walkable? from-tile))
+                              (kick-door build? game level to-tile dir)))))))
+                (if (and (:pick opts) (diggable? to-tile)
+                         (or (boulder? to-tile) (diggable-walls? game level))
+                         (dare-destroy? level to-tile))
+                  (if monster
+                    (pass-monster* build? game level to-tile dir monster opts)
+                    (if (or (not (:thick (:player game)))
+                            (not (narrow? game level from-tile to-tile)))
+                      [8 (act build? (dig (:pick opts) dir))]
+                      [16 (act build? (dig (:pick opts) dir))]))))
+            (update 0 + (base-cost level dir to-tile opts)))))
 
 (defn move
   "Returns [cost Action] for a move, if it is possible"
   ([game level from to]
    (move game level from to {}))
   ([game level from to opts]
-   (let [to-tile (at level to)
-         from-tile (at level from)
-         dir (towards from to-tile)
-         monster (monster-at level to)
-         need-levi? (or (and (:levi opts) (#{:air :water} (:branch-id game))
-                             (walkable? to-tile))
-                        (needs-levi? to-tile))]
-     (some-> (or (if (and (passable-walking? game level from-tile to-tile)
-                          (or (not (:explored opts))
-                              (:new-items to-tile) (:feature to-tile))
-                          (not (and (kickable-door? level to-tile opts)
-                                    (blocked-door level to-tile))))
-                   (if monster
-                     (pass-monster game level to-tile dir monster opts)
-                     (or (and (shop? to-tile) (not (shop? from-tile))
-                              (enter-shop game))
-                         (if-not (or (and (:levi opts) need-levi?)
-                                     (and (:castle (:tags level))
-                                          (= (position 60 12)
-                                             (position to-tile)))
-                                     (and (polytrap? to-tile)
-                                          (not (have-mr? game)))
-                                     (and (= :sokoban (branch-key game))
-                                          (hole? to-tile))
-                                     (and (:no-traps opts) (trap? to-tile)))
-                           [0 (->Move dir)])))) ; trapdoors/holes are escapable
-                 (if (kickable-door? level from-tile opts)
-                   (if-let [odir (blocked-door level from-tile)]
-                     (if (monster-at level (in-direction from-tile odir))
-                       [3 (with-reason
-                            "waiting for monster to move to kick door at my pos"
-                            (->Search))]
-                       [1 (with-reason "moving to kick blocked door at my pos"
-                            (->Move odir))])))
-                 (if (and (edge-passable-walking? game level from-tile to-tile)
-                          need-levi? (not (boulder? to-tile)))
-                   (if-let [[slot item] (:levi opts)]
-                     (if-let [[cost move] (if monster
-                                            (pass-monster game level to-tile
-                                                          dir monster opts)
-                                            [1 (->Move dir)])]
-                       (if (:worn item)
-                         [cost (with-reason "assuming levitation" move)]
-                         [(+ 2 cost) (with-reason "need levi for next move"
-                                       (make-use game slot))]))))
-                 (if (and (door? to-tile)
-                          (not (:walking opts))
-                          (not (:no-kick opts)))
-                   (or (if monster
-                         (pass-monster game level to-tile dir monster opts))
-                       (if (door-secret? to-tile)
-                         [10 (search 10)]) ; TODO stethoscope
-                       (and (kickable-door? level to-tile opts)
-                            (walkable? from-tile)
-                            (blocked-door level to-tile)
-                            (->> (partial with-reason
-                                          "the door is blocked from one side")
-                                 (update (kick-door game level to-tile dir) 1)))
-                       (if (diagonal dir)
-                         (if (and (kickable-door? level to-tile opts)
-                                  (walkable? from-tile))
-                           (kick-door game level to-tile dir))
-                         (if (door-closed? to-tile)
-                           [3 (->Open dir)]
-                           (if-let [[slot i] (and (door-locked? to-tile)
-                                                  (can-unlock? game)
-                                                  (have-key game))]
-                             (if (or (dare-destroy? level to-tile)
-                                     (key? i)
-                                     (not (:minetown (:tags level))))
-                               [4 (->Unlock slot dir)])
-                             (if (and (kickable-door? level to-tile opts)
-                                      (walkable? from-tile))
-                               (kick-door game level to-tile dir)))))))
-                 (if (and (:pick opts) (diggable? to-tile)
-                          (or (boulder? to-tile) (diggable-walls? game level))
-                          (dare-destroy? level to-tile))
-                   (if monster
-                     (pass-monster game level to-tile dir monster opts)
-                     (if (or (not (:thick (:player game)))
-                             (not (narrow? game level from-tile to-tile)))
-                       [8 (dig (:pick opts) dir)]
-                       [16 (dig (:pick opts) dir)]))))
-             (update 0 + (base-cost level dir to-tile opts))))))
+   (move* true game level from to opts)))
+
+(defn- move-cost
+  "Like move but doesn't construct the action, returns [cost true] for a
+  possible move.  Used for the edges expanded by the search."
+  [game level from to opts]
+  (move* false game level from to opts))
 
 (defrecord Path
   [step ; next Action to perform to move along path
-   path ; vector of remaining positions
+   path ; vector of remaining positions (just up to :waypoint if set)
    target] ; position of target
   bothack.actions.Navigation$IPath
   (step [p] (:step p))
@@ -334,7 +432,7 @@
                (not-any? (partial monster-at level) (neighbors from)))
         target))))
 
-(defn- path-step [game level from move-fn path opts]
+(defn- path-step [game level from path opts]
   (if-let [start (firstv path)]
     (some-> (or (if (:trapped (:player game))
                   (with-reason "untrapping self"
@@ -344,19 +442,98 @@
                                      (autonav-target game from level
                                                      path opts))]
                   (->Autotravel target))
-                (secondv (move-fn from start)))
+                (secondv (move game level from start opts)))
             (assoc :path path))))
 
+(def ^:private cluster-graphs
+  "[branch-id dlvl door-mode] => {:tiles <last seen version> :graph ClusterGraph}"
+  (atom {}))
+
+(defn- door-mode
+  "What the movement options allow to do with closed and locked doors (the
+  same conditions as in move): nil if nothing, :key or :unlock if we can unlock
+  them with a skeleton key or another tool, :open otherwise"
+  [game opts]
+  (if-not (or (:walking opts) (:no-kick opts))
+    (if-let [[_ i] (and (can-unlock? game) (have-key game))]
+      (if (key? i) :key :unlock)
+      :open)))
+
+(defn- abstract-passable? [level mode tile]
+  (or (walkable? tile)
+      (and mode
+           (or (door-closed? tile)
+               (and (door-locked? tile)
+                    (or (= :key mode)
+                        (and (= :unlock mode)
+                             (or (dare-destroy? level tile)
+                                 (not (:minetown (:tags level)))))
+                        (kickable-door? level tile {})))))))
+
+(defn cluster-graph
+  "Returns the HPA*-style cluster graph of the level (see ClusterGraph.java)
+  for the door-mode of the movement options.  When the tiles change the graph
+  is rebuilt from the previous version, only the clusters with changed
+  passability get their distances recomputed."
+  ^ClusterGraph [game level opts]
+  (let [mode (door-mode game opts)
+        k [(:branch-id level) (:dlvl level) mode]
+        tiles (:tiles level)
+        {old-tiles :tiles graph :graph} (get @cluster-graphs k)]
+    (if (identical? tiles old-tiles)
+      graph
+      (let [^booleans passable (boolean-array (* 80 21))
+            ^booleans no-diag (boolean-array (* 80 21))]
+        (doseq [row tiles
+                tile row
+                :let [idx (grid-index tile)]]
+          (aset passable idx (boolean (abstract-passable? level mode tile)))
+          (aset no-diag idx (boolean (door? tile))))
+        (let [graph (ClusterGraph/build graph passable no-diag)]
+          (log/debug "cluster graph rebuilt," (.recomputedClusters graph)
+                     "clusters recomputed")
+          (swap! cluster-graphs assoc k {:tiles tiles :graph graph})
+          graph)))))
+
+(def ^:private refine-radius
+  "Distance from the player up to which hierarchical routes are refined to
+  grid paths"
+  15)
+
+(defn- hierarchical-path
+  "For distant targets plans the route on the level's cluster graph and only
+  refines its beginning to a grid path (the Path leads just to the first
+  waypoint at least refine-radius away, the :waypoint key of the Path, while
+  its :target is still the real target).  Nil if the target is near or there
+  is no abstract route."
+  [game level from to move-fn opts max-steps]
+  (if (< refine-radius (distance from to))
+    (if-let [waypoint (some->> (let [graph (cluster-graph game level opts)
+                                     from (grid-index from)
+                                     to (grid-index to)]
+                                 (if-let [deadline *deadline*]
+                                   (.route graph from to (long deadline))
+                                   (.route graph from to)))
+                               (map grid-position)
+                               (find-first #(<= refine-radius
+                                                (distance from %))))]
+      (if-let [path (and (not= waypoint (position to))
+                         (a* from waypoint move-fn max-steps))]
+        (assoc (->Path (path-step game level from path opts) path to)
+               :waypoint waypoint)))))
+
 (defn- get-a*-path [game level from to move-fn opts max-steps]
-  (if-let [path (a* from to move-fn max-steps)]
-    (if (seq path)
-      (if (:adjacent opts)
-        (->Path (path-step game level from move-fn path opts) (pop path) to)
-        (if-let [step (and (or (= 1 (count path))
-                               (move-fn (-> path pop peek) to))
-                           (path-step game level from move-fn path opts))]
-          (->Path step path to)))
-      (->Path nil [] to))))
+  (or (if (and (:hierarchical opts) (not (:adjacent opts)))
+        (hierarchical-path game level from to move-fn opts max-steps))
+      (if-let [path (a* from to move-fn max-steps)]
+        (if (seq path)
+          (if (:adjacent opts)
+            (->Path (path-step game level from path opts) (pop path) to)
+            (if-let [step (and (or (= 1 (count path))
+                                   (move-fn (-> path pop peek) to))
+                               (path-step game level from path opts))]
+              (->Path step path to)))
+          (->Path nil [] to)))))
 
 (defn navopts
   ([s] (navopts s nil))
@@ -364,10 +541,31 @@
    (cond-> (zipmap (map #(.getKeyword %) s) (repeat true))
      steps (assoc :max-steps steps :max-delta steps))))
 
+(defn- movement-opts
+  "Normalizes navigation options and adds the levitation and digging items
+  usable for movement"
+  [game level {:keys [walking no-dig no-levitation] :as opts}]
+  (let [opts (if (set? opts) (zipmap opts (repeat true)) opts)
+        branch (branch-key game level)
+        levi (and (not no-levitation)
+                  (not walking)
+                  (not= :sokoban branch)
+                  (or (have-levi-on game)
+                      (have-levi game)))
+        pick (and (not walking)
+                  (not no-dig)
+                  (not= :sokoban branch)
+                  (have-pick game))]
+    (cond-> opts
+      (:avoid-danger opts) (assoc :avoid-danger (danger-map level))
+      levi (assoc :levi levi)
+      pick (assoc :pick pick))))
+
 (defn navigate
   "Return shortest Path for given target position or predicate (a set of
   positions or any fn that takes a tile and returns boolean), will use A* or
-  Dijkstra's algorithm as appropriate.
+  Dijkstra's algorithm as appropriate.  Gives up (returns nil) if *deadline*
+  passes during the search.
 
   Supported options (a map or a set if all vals of the map would be true):
     :walking - don't use actions except Move (no door opening etc.)
@@ -380,30 +578,22 @@
     :no-levitation - when navigating deliberately into a hole/trapdoor
     :prefer-items - walk over unknown items preferably (useful for exploration but possibly dangerous when low on health - items could be corpses on a dangerous trap)
     :no-autonav - don't use _ autotravel (when fighting monsters)
-    :no-fight - don't path through hostile monsters"
+    :no-fight - don't path through hostile monsters
+    :avoid-danger - prefer tiles hostile monsters can't reach next turn (adds
+                    the danger-map value of tiles to the cost)
+    :hierarchical - for a distant single target only plan the route on the
+                    level's cluster graph and refine its beginning, the
+                    returned path leads just to a waypoint on the route"
   ([game pos-or-goal-fn]
    (navigate game pos-or-goal-fn {}))
-  ([{:keys [player] :as game} pos-or-goal-fn
-    {:keys [max-steps walking adjacent no-dig no-levitation] :as opts}]
+  ([{:keys [player] :as game} pos-or-goal-fn {:keys [max-steps] :as opts}]
    {:pre [((some-fn ifn? position) pos-or-goal-fn)
           ((some-fn map? set? nil?) opts)]}
    (log/debug "navigating" pos-or-goal-fn opts)
    (let [level (curlvl game)
-         branch (branch-key game level)
-         levi (and (not no-levitation)
-                   (not walking)
-                   (not= :sokoban branch)
-                   (or (have-levi-on game)
-                       (have-levi game)))
-         pick (and (not walking)
-                   (not no-dig)
-                   (not= :sokoban branch)
-                   (have-pick game))
-         opts (cond-> opts
-                (set? opts) (zipmap (repeat true))
-                levi (assoc :levi levi)
-                pick (assoc :pick pick))
-         move-fn #(move game level %1 %2 opts)]
+         opts (movement-opts game level opts)
+         adjacent (:adjacent opts)
+         move-fn #(move-cost game level %1 %2 opts)]
      ; code below decides whether to run dijkstra (multiple goals) or A* (single goal) or nothing (no goal tile on the level)
      (if (or (not (ifn? pos-or-goal-fn)) (map? pos-or-goal-fn))
        (get-a*-path game level player pos-or-goal-fn move-fn opts max-steps)
@@ -420,7 +610,7 @@
                1 (get-a*-path game level player (first goal-set)
                               move-fn opts max-steps)
                (if-let [path (dijkstra player goal-set move-fn max-steps)]
-                 (->Path (path-step game level player move-fn path opts) path
+                 (->Path (path-step game level player path opts) path
                          (->> (or (peek path) player)
                               neighbors
                               (find-first goal-fn))))))
@@ -430,11 +620,98 @@
                                     (filter goal-fn (tile-seq level))))]
              (if (more-than? 1 goal-seq)
                (if-let [path (dijkstra player goal-fn move-fn max-steps)]
-                 (->Path (path-step game level player move-fn path opts) path
+                 (->Path (path-step game level player path opts) path
                          (or (peek path) (position player))))
                (get-a*-path game level player (first goal-seq) move-fn opts
                             max-steps)))))))))
 
+(defn query-positions
+  "Returns the set of positions of tiles on the level matching a tile query (a
+  map, see TileQuery.java):
+    :features - set of feature keywords
+    :new-items - value of the tile's :new-items flag (as boolean)
+    :walked - whether the tile was walked
+    :within <num> - max. number of steps from the given position
+  Features are tested against the level's feature grid before looking up any
+  tiles."
+  ([level query] (query-positions level query nil))
+  ([level {:keys [features new-items walked within]} from]
+   (let [^ints grid (.featureGrid ^bothack.bot.dungeon.ILevel level)
+         ^booleans mask (when features
+                          (let [mask (boolean-array
+                                       (alength (bothack.bot.dungeon.Feature/values)))]
+                            (doseq [f features]
+                              (aset mask (.ordinal ^Enum (kw->enum bothack.bot.dungeon.Feature f))
+                                    true))
+                            mask))
+         in-range? (if (and within from)
+                     #(<= (distance from %) within)
+                     (constantly true))
+         tile-ok? (if (or (some? new-items) (some? walked))
+                    (fn [tile]
+                      (and (or (nil? new-items)
+                               (= (boolean new-items) (boolean (:new-items tile))))
+                           (or (nil? walked)
+                               (= (boolean walked) (some? (:walked tile))))))
+                    (constantly true))]
+     (loop [idx 0
+            res (transient #{})]
+       (if (< idx (* 21 80))
+         (recur (inc idx)
+                (let [f (aget grid idx)]
+                  (if (or (nil? mask) (and (<= 0 f) (aget mask f)))
+                    (let [pos (position (rem idx 80) (inc (quot idx 80)))]
+                      (if (and (in-range? pos) (tile-ok? (at level pos)))
+                        (conj! res pos)
+                        res))
+                    res)))
+         (persistent! res))))))
+
+(defn navigate-query
+  "Like navigate but for a tile query map (see query-positions)."
+  [{:keys [player] :as game} query opts]
+  (let [targets (query-positions (curlvl game) query player)
+        opts (if-let [within (:within query)]
+               (update opts :max-steps #(if % (min % within) within))
+               opts)]
+    (if (seq targets)
+      (navigate game targets opts))))
+
+(defn navigate-all
+  "Like navigate but returns Paths to all reachable matching targets (a set of
+  positions or a tile predicate) found by a single Dijkstra search, ordered by
+  path cost.  Each Path has an extra :cost key.  Supports the same options as
+  navigate.  If *deadline* passes only the targets reached so far are
+  returned."
+  ([game targets]
+   (navigate-all game targets {}))
+  ([{:keys [player] :as game} targets {:keys [max-steps] :as opts}]
+   (let [level (curlvl game)
+         opts (movement-opts game level opts)
+         move-fn #(move-cost game level %1 %2 opts)
+         targets (set (map position (if (set? targets)
+                                      targets
+                                      (filter targets (tile-seq level)))))
+         goals (if (:adjacent opts)
+                 (set (mapcat neighbors targets))
+                 targets)
+         found (if (seq goals)
+                 (dijkstra-all player goals move-fn max-steps))
+         best (if (:adjacent opts)
+                ; the cheapest reached neighbor of each target
+                (into {} (for [target targets
+                               :let [reached (keep found (neighbors target))]
+                               :when (seq reached)]
+                           [target (apply min-key first reached)]))
+                found)]
+     (->> (for [[target [cost path]] best]
+            (assoc (->Path (if (seq path)
+                             (path-step game level player path opts))
+                           path target)
+                   :cost cost))
+          (sort-by :cost)
+          vec))))
+
 (defn- isolated? [level tile]
   (every? (every-pred blank? unknown?) (neighbors level tile)))
 
@@ -476,6 +753,79 @@
                   (not-any? walkable? (neighbors level tile)))
               (> 2 (count (remove (some-fn rock? wall?) snbr)))))))
 
+(defn- level-changes
+  "Positions of tiles and monsters that differ between two versions of a level
+  (compared by identity, rows first), nil if too many changed"
+  [old new]
+  (let [old-tiles (:tiles old)
+        new-tiles (:tiles new)
+        old-monsters (:monsters old)
+        new-monsters (:monsters new)
+        changes (concat
+                  (if-not (identical? old-tiles new-tiles)
+                    (for [y (range 21)
+                          :let [old-row (nth old-tiles y)
+                                new-row (nth new-tiles y)]
+                          :when (not (identical? old-row new-row))
+                          x (range 80)
+                          :when (not (identical? (nth old-row x)
+                                                 (nth new-row x)))]
+                      (position x (inc y))))
+                  (if-not (identical? old-monsters new-monsters)
+                    (concat (for [[pos m] new-monsters
+                                  :when (not (identical? m (get old-monsters pos)))]
+                              pos)
+                            (remove (partial contains? new-monsters)
+                                    (keys old-monsters)))))]
+    (if-not (more-than? 200 changes)
+      changes)))
+
+(defn- within-radius [radius positions]
+  (set (for [{:keys [x y]} positions
+             dx (range (- radius) (inc radius))
+             dy (range (- radius) (inc radius))
+             :let [nx (+ x dx) ny (+ y dy)]
+             :when (valid-position? nx ny)]
+         (position nx ny))))
+
+(def ^:private frontier-preds
+  "frontier kind => [(fn [level tile]) radius of tiles the fn looks at]"
+  {:explorable [explorable-tile? 1]
+   :dead-ends [dead-end? 2]})
+
+(def ^:private frontier-cache
+  "[branch-id dlvl] => {:level <last seen version> kind #{positions}}"
+  (atom {}))
+
+(defn- update-frontier [old-set level kind changes]
+  (let [[pred radius] (frontier-preds kind)]
+    (if (and old-set changes)
+      (let [dirty (within-radius radius changes)]
+        (into (reduce disj old-set dirty)
+              (filter #(pred level (at level %)) dirty)))
+      (set (for [tile (tile-seq level)
+                 :when (pred level tile)]
+             (position tile))))))
+
+(defn frontier
+  "Returns the set of positions on the level matching the predicate of the
+  frontier kind (:explorable - explorable-tile?, :dead-ends - dead-end?).
+  The sets are maintained incrementally: when the level changes only the tiles
+  near changed tiles or monsters are re-evaluated."
+  [level kind]
+  (let [k [(:branch-id level) (:dlvl level)]
+        {old-level :level :as entry} (get @frontier-cache k)]
+    (if (and (identical? level old-level) (contains? entry kind))
+      (entry kind)
+      (let [changes (cond (identical? level old-level) []
+                          old-level (level-changes old-level level))
+            entry (into {:level level}
+                        (for [kind (distinct (cons kind (keys (dissoc entry :level))))]
+                          [kind (update-frontier (get entry kind) level kind
+                                                 changes)]))]
+        (swap! frontier-cache assoc k entry)
+        (entry kind)))))
+
 (defn- has-dead-ends? [game level]
   (and (not-any? #{:bigroom :juiblex :sanctum} (:tags level))
        (not (in-gehennom? game))
@@ -541,8 +891,8 @@
 
 (defn- recheck-dead-ends [{:keys [player] :as game} level howmuch]
   (if (has-dead-ends? game level)
-    (if-let [p (navigate game #(and (< (searched level %) howmuch)
-                                    (dead-end? level %)))]
+    (if-let [p (navigate game (set (filter #(< (searched level %) howmuch)
+                                           (frontier level :dead-ends))))]
       (with-reason "re-checking dead ends" (or (:step p) (search 10))))))
 
 (defn- searchable-position? [pos]
@@ -776,7 +1126,8 @@
   ([game] (or (search-level game 3)
               (unstuck game)
               (search-level game 6)
-              (throw (IllegalStateException. "stuck :-("))))
+              (if-not (deadline-passed?)
+                (throw (IllegalStateException. "stuck :-(")))))
   ([game max-iter]
    (with-reason "searching - max-iter =" max-iter
      (let [level (curlvl game)]
@@ -1083,7 +1434,7 @@
                  (not (:walked (at-curlvl game 20 10))))
           (with-reason "searching sanctum"
             (seek game {:x 20 :y 10} {:no-explore true})))
-        (if-let [path (navigate game (partial explorable-tile? level)
+        (if-let [path (navigate game (frontier level :explorable)
                                 #{:prefer-items})]
           (with-reason "exploring" (at level (:target path))
             (:step path)))
@@ -1093,9 +1444,8 @@
           (with-reason "level not explored enough, searching"
             (search-level game (search-limit game level))))
         (if-let [bldrs (and (not= :sokoban branch)
-                            (filter #(and (boulder? %)
-                                          (explorable-tile? level %))
-                               (tile-seq level)))]
+                            (filter boulder? (map (partial at level)
+                                                  (frontier level :explorable))))]
           (if-let [path (navigate game #(and (some (partial adjacent? %) bldrs)
                                              (pushable-from game level %)))]
             (with-reason "going to push an explorable boulder"
@@ -1193,8 +1543,126 @@
       (->> (neighbor-levels game (curlvl game) bmap opts)
            (map levid) (into #{(levid game)}))))))
 
+(def ^:private unknown-level-cost
+  "Estimated number of moves needed to get between unknown positions on a
+  level"
+  40)
+
+(def ^:private level-costs
+  "[branch-id dlvl] => {:tiles <last seen version>, [from to] => cost,
+  [:exit level-id] => position}"
+  (atom {}))
+
+(defn- level-cached
+  "Looks up the cached value for the level or computes and caches it, the
+  cache of a level is dropped when its map changes.  A ::aborted value (a
+  computation that ran out of time) is not cached."
+  [level k f]
+  (let [level-key [(:branch-id level) (:dlvl level)]
+        tiles (:tiles level)
+        entry (get @level-costs level-key)
+        entry (if (identical? tiles (:tiles entry))
+                entry
+                {:tiles tiles})]
+    (if (contains? entry k)
+      (get entry k)
+      (let [v (f)]
+        (if-not (= ::aborted v)
+          (swap! level-costs assoc level-key (assoc entry k v)))
+        v))))
+
+(defn clear-path-caches
+  "Drops the cached cluster graphs, frontiers and costs of all levels (when a
+  new game starts in the same JVM)."
+  []
+  (reset! cluster-graphs {})
+  (reset! frontier-cache {})
+  (reset! level-costs {})
+  (reset! possible-cache nil))
+
+(defn- level-distance
+  "Approximate number of moves between two positions of the level (cluster
+  graph distance)"
+  [game level from to]
+  (if (and from to)
+    (let [d (level-cached level [(position from) (position to)
+                                 (door-mode game {})]
+                          #(let [graph (cluster-graph game level {})
+                                 from (grid-index from)
+                                 to (grid-index to)
+                                 d (if-let [deadline *deadline*]
+                                     (.distance graph from to (long deadline))
+                                     (.distance graph from to))]
+                             (cond (not (neg? d)) d
+                                   (deadline-passed?) ::aborted
+                                   :else unknown-level-cost)))]
+      (if (= ::aborted d)
+        (do (search-aborted!)
+            unknown-level-cost)
+        d))
+    unknown-level-cost))
+
+(defn- level-exit
+  "Position of the stairs of the level leading to the neighboring level, nil
+  if not known yet"
+  [game level to-level]
+  (level-cached level [:exit [(:branch-id to-level) (:dlvl to-level)]]
+                #(let [feature (if (pos? (dlvl-compare (:dlvl level)
+                                                       (:dlvl to-level)))
+                                 :stairs-up
+                                 :stairs-down)
+                       to-branch (branch-key game to-level)
+                       stairs (filter (fn [tile] (has-feature? tile feature))
+                                      (tile-seq level))]
+                   (some-> (or (find-first (fn [tile]
+                                             (= to-branch
+                                                (branch-key game tile)))
+                                           stairs)
+                               (find-first (complement :branch-id) stairs))
+                           position))))
+
+(defn level-route
+  "Cheapest route from the player's position to another level matching goal?
+  (a fn of Level) over the graph of stairs of known levels.  Moving between
+  stairs of a level costs their cluster graph distance (cached until the
+  level's map changes), positions not known yet are estimated.  Takes the
+  same options as level-seq.  Returns {:level <Level> :cost <num> :route
+  [[Level position]...]} or nil (also when *deadline* passes)."
+  ([game goal?] (level-route game goal? {}))
+  ([game goal? opts]
+   (let [bmap (branch-map game)
+         levid (juxt :dlvl :branch-id)
+         start (curlvl game)]
+     (loop [closed #{}
+            open (priority-map-keyfn first
+                                     [(levid start) (position (:player game))]
+                                     [0 start []])]
+       (if-let [[[_ pos :as node] [cost level route]] (peek open)]
+         (let [route (conj route [level pos])]
+           (cond
+             (and (not= (levid level) (levid start)) (goal? level))
+             {:level level :cost cost :route route}
+             (deadline-passed?) (do (log/debug "level-route deadline passed")
+                                    (search-aborted!))
+             :else
+             (recur (conj closed node)
+                    (merge-with
+                      (partial min-key first)
+                      (pop open)
+                      (into {} (for [nbr (neighbor-levels game level bmap opts)
+                                     :let [nbr-node [(levid nbr)
+                                                     (level-exit game nbr level)]]
+                                     :when (not (closed nbr-node))]
+                                 [nbr-node
+                                  [(+ cost 1 (level-distance
+                                               game level pos
+                                               (level-exit game level nbr)))
+                                   nbr route]])))))))))))
+
 (defn seek-tile
-  "Options:
+  "Seeks a tile matching goal? on the current level or goes to the level with
+  the cheapest route (see level-route) that has one.
+  Options:
   :up - only go up, never to subbranches
   :max-delta - limit search depth"
   ([game goal?]
@@ -1203,12 +1671,16 @@
    (log/debug "seek tile" goal?)
    (with-reason "seeking tile" goal?
      (or (:step (navigate game goal? opts))
-         (as-> (level-seq game opts) res
-           (if (:max-delta opts)
-             (take (:max-delta opts) res)
-             res)
-           (find-first (comp (partial some goal?) tile-seq) res)
-           (if res (seek-level game (:branch-id res) (:dlvl res))))))))
+         (let [levid (juxt :dlvl :branch-id)
+               in-range (if-let [max-delta (:max-delta opts)]
+                          (->> (level-seq game opts) (take max-delta)
+                               (map levid) set)
+                          (constantly true))]
+           (if-let [res (:level (level-route
+                                  game #(and (in-range (levid %))
+                                             (some goal? (tile-seq %)))
+                                  opts))]
+             (seek-level game (:branch-id res) (:dlvl res))))))))
 
 (defn seek-feature [game feature]
   (with-reason "seeking feature" feature
@@ -97,6 +97,14 @@
      (if (valid-position? res)
        res))))
 
+(defn grid-index
+  "Index of the position in the level grids (ILevel.featureGrid etc.)"
+  [{:keys [x y]}]
+  (+ (* 80 (dec y)) x))
+
+(defn grid-position [idx]
+  (position (rem idx 80) (inc (quot idx 80))))
+
 (defn distance [from to]
   (max (Math/abs ^long (unchecked-subtract (:x from) (:x to)))
        (Math/abs ^long (unchecked-subtract (:y from) (:y to)))))
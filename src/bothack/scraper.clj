@@ -530,7 +530,8 @@
                      (emit-botl delegator frame)
                      (send delegator know-position frame)
                      (flush-more-list delegator items)
-                     (send delegator full-frame frame)
+                     (send delegator
+                           #(with-jfr-event FULL_FRAME (full-frame % frame)))
                      sink)
                    (log/debug "lastmsg expecting further redraw")))
              (farm [frame]
@@ -580,6 +581,7 @@
       RedrawHandler
       (redraw [_ frame]
         #_(dosync (alter scraper apply-scraper delegator frame))
-        (->> (dosync (alter scraper apply-scraper delegator frame))
+        (->> (with-jfr-event [SCRAPER type]
+               (dosync (alter scraper apply-scraper delegator frame)))
              type
              (log/debug "next scraper:"))))))
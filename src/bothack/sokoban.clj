@@ -12,7 +12,9 @@
             [bothack.position :refer :all]
             [bothack.player :refer :all]
             [bothack.tile :refer :all]
-            [bothack.util :refer :all]))
+            [bothack.util :refer :all])
+  (:import [bothack SokobanSolver]
+           [bothack.bot.dungeon Feature ILevel]))
 
 ; XXX boulders paths must not overlap within one boulder count
 (def ^:private solutions
@@ -282,57 +284,191 @@
 
 (def ^:private bswitch (position 30 15)) ; ugly hack to handle the one layout where paths have to cross
 
+(def ^:private plans
+  "soko-tag => no. boulders => [push ...], the solutions compiled into pushes
+  of a boulder along a straight line.  :src and :dest are the first and last
+  player positions, :end the final boulder position."
+  (into {} (for [[tag s] solutions]
+             [tag (into {} (for [[boulders moves] s]
+                             [boulders
+                              (vec (for [[src dest] (partition 2 moves)
+                                         :let [moves (vec (moves-for src dest))
+                                               src (first moves)
+                                               dest (peek moves)]]
+                                     {:src src
+                                      :dest dest
+                                      :end (if-let [dir (towards src dest)]
+                                             (in-direction dest dir))
+                                      :moves moves}))]))])))
+
+(def ^:private zobrist
+  "Random keys of map positions for hashing boulder layouts"
+  (let [rnd (java.util.Random. 1979)]
+    (long-array (repeatedly (* 21 80) #(.nextLong rnd)))))
+
+(defn- boulder-layout
+  "Returns [count hash real-hash] of the real boulders on the level.  Tiles that
+  only look like boulders (mimics) are also reflected in the hash, real-hash
+  only covers the real boulders."
+  [level]
+  (let [^chars glyphs (.glyphGrid ^ILevel level)
+        ^longs zobrist zobrist]
+    (loop [i 0
+           cnt 0
+           h 0
+           real 0]
+      (if (< i (alength glyphs))
+        (if (= \8 (aget glyphs i))
+          (let [k (aget zobrist i)]
+            (if (real-boulder? level (position (rem i 80) (inc (quot i 80))))
+              (recur (inc i) (inc cnt) (bit-xor h k) (bit-xor real k))
+              (recur (inc i) cnt (bit-xor h (Long/rotateLeft k 1)) real)))
+          (recur (inc i) cnt h real))
+        [cnt h real]))))
+
 (defn- boulder-count [level]
-  (count (filter (partial real-boulder? level) (tile-seq level))))
+  (first (boulder-layout level)))
+
+(def ^:private hole-ordinal (.ordinal Feature/HOLE))
+(def ^:private pit-ordinal (.ordinal Feature/PIT))
+
+(defn- holes-left? [level]
+  (let [^ints features (.featureGrid ^ILevel level)]
+    (loop [i 0]
+      (if (< i (alength features))
+        (let [f (aget features i)]
+          (or (== f hole-ordinal) (== f pit-ordinal) (recur (inc i))))
+        false))))
 
 (defn- mimic-count [game]
   (count (filter mimic? (curlvl-monsters game))))
 
-(defn- soko-move [{:keys [player last-fill] :as game}]
+(defn- soko-plan
+  "Returns {:tag :pushes :key} for the current sokoban level if it isn't
+  solved yet.  The key identifies the state of the solution (the boulder
+  layout and last filled hole), the pushes are the rest of the plan for the
+  current number of boulders."
+  [game]
   (when-let [[tag s] (and (= :sokoban (branch-key game))
-                          (some (some-fn hole? pit?) (tile-seq (curlvl game)))
-                          (some (partial find solutions) (curlvl-tags game)))]
+                          (holes-left? (curlvl game))
+                          (some (partial find plans) (curlvl-tags game)))]
     (let [level (curlvl game)
-          boulders (boulder-count level)
+          [boulders layout] (boulder-layout level)
           x (if (and (:soko-4a (curlvl-tags game))
                      (real-boulder? level bswitch))
               (+ 100 boulders)
               boulders)]
-      (with-reason "solving soko" tag
-        (if-let [[[src dest] & _] (->> (s x) (partition 2)
-                                       (drop-while
-                                         (fn [[[sx sy] [dx dy]]]
-                                           (or (->> (position dx dy)
-                                                    (towards (position sx sy))
-                                                    (in-direction
-                                                      level (position dx dy))
-                                                    (real-boulder? level))
+      {:tag tag
+       :pushes (s x)
+       :key [tag x layout (:last-fill game)]})))
+
+(defn- plan-step
+  "Returns [player-position push-target] of the next push of the plan or nil"
+  [level last-fill pushes]
+  (if-let [{:keys [moves]} (find-first
+                             (fn [{:keys [src dest end]}]
+                               (not (or (and end (real-boulder? level end))
+                                        (walked-in-order? last-fill
+                                                          (at level src)
+                                                          (at level dest)))))
+                             pushes)]
+    (let [moves (map (partial at level) moves)
+          [msrc mdest] (->> (interleave moves (drop 1 moves))
+                            (partition 2)
+                            (drop-while (fn [[src dest]]
+                                          (and (not (boulder? dest))
                                                (walked-in-order?
-                                                 last-fill
-                                                 (at level sx sy)
-                                                 (at level dx dy))))) seq)]
-          (let [moves (map (partial at level) (moves-for src dest))
-                [msrc mdest] (->> (interleave moves (drop 1 moves))
-                                  (partition 2)
-                                  (drop-while (fn [[src dest]]
-                                                (and (not (boulder? dest))
-                                                     (walked-in-order?
-                                                       last-fill src dest))))
-                                  first)]
-            (log/debug "soko moves >>>" (map position moves))
-            (if (= (position msrc) (position player))
-              (or (if-let [monster (->> (towards msrc mdest)
-                                        (in-direction mdest)
-                                        (monster-at game))]
-                    (if (and (or (= \I (:glyph monster))
-                                 (not (:remembered monster)))
-                             (= :move (typekw (:last-action* game))))
-                      (with-reason "soko blocked by monster"
-                        ->Search)))
-                  (with-reason "push" (->Move (towards msrc mdest))))
-              (with-reason "boulder start"
-                (:step (navigate game msrc)))))
-          (log/debug "soko no more moves"))))))
+                                                 last-fill src dest))))
+                            first)]
+      (log/debug "soko moves >>>" (map position moves))
+      (if msrc
+        [(position msrc) (position mdest)]))))
+
+(defn- soko-step
+  "plan-step for the plan, reusing the step cached by soko-handler if the
+  state of the solution didn't change"
+  [game {:keys [key pushes]}]
+  (let [cached (:soko-step game)]
+    (if (= key (:key cached))
+      (:step cached)
+      (plan-step (curlvl game) (:last-fill game) pushes))))
+
+(def ^:private solver-dirs [:N :S :W :E])
+
+(defn- solver-plan
+  "Converts SokobanSolver pushes into {real-hash [player-position dir]} for
+  the boulder layouts along the plan"
+  [pushes boulders holes]
+  (let [^longs zobrist zobrist]
+    (loop [[b d & more] pushes
+           boulders (set boulders)
+           holes (set holes)
+           h (reduce #(bit-xor %1 (aget zobrist %2)) 0 boulders)
+           res {}]
+      (if-not b
+        res
+        (let [dir (solver-dirs d)
+              to (grid-index (in-direction (grid-position b) dir))
+              res (assoc res h [(in-direction (grid-position b) (opposite dir))
+                                dir])
+              h (bit-xor h (aget zobrist b))]
+          (if (holes to)
+            (recur more (disj boulders b) (disj holes to) h res)
+            (recur more (conj (disj boulders b) to) holes
+                   (bit-xor h (aget zobrist to)) res)))))))
+
+(defn- solve-level
+  "Runs SokobanSolver on the current level, returns the solver-plan or nil if no
+  solution was found within the time limit"
+  [game budget-ms]
+  (let [level (curlvl game)
+        open (boolean-array (* 21 80))
+        boulders (filter (partial real-boulder? level) (tile-seq level))
+        holes (filter (some-fn hole? pit?) (tile-seq level))]
+    (doseq [tile (tile-seq level)
+            :when (or (real-boulder? level tile)
+                      (and (not (unknown? tile)) (not (boulder? tile))
+                           (walkable? tile) (not (hole? tile)) (not (pit? tile))))]
+      (aset open (grid-index tile) true))
+    (let [boulders (map grid-index boulders)
+          holes (map grid-index holes)
+          start (System/nanoTime)
+          pushes (.solve (SokobanSolver. open (int-array holes))
+                         (int-array boulders) (grid-index (:player game))
+                         budget-ms 1000000)]
+      (log/info "soko solver:" (if pushes
+                                 (str (quot (alength pushes) 2) " pushes")
+                                 "no solution")
+                "in" (quot (- (System/nanoTime) start) 1000000) "ms")
+      (if pushes
+        (solver-plan (seq pushes) boulders holes)))))
+
+(defn- solver-step
+  "The next push from the background solver's plan for the current boulder
+  layout, if it is ready"
+  [game]
+  (if-let [result (:result (:soko-solver game))]
+    (if (realized? result)
+      (if-let [[from dir] (get @result (nth (boulder-layout (curlvl game)) 2))]
+        [from (in-direction from dir)]))))
+
+(defn- soko-move [{:keys [player] :as game}]
+  (when-let [{:keys [tag] :as plan} (soko-plan game)]
+    (with-reason "solving soko" tag
+      (if-let [[msrc mdest] (or (soko-step game plan) (solver-step game))]
+        (if (= msrc (position player))
+          (or (if-let [monster (->> (towards msrc mdest)
+                                    (in-direction mdest)
+                                    (monster-at game))]
+                (if (and (or (= \I (:glyph monster))
+                             (not (:remembered monster)))
+                         (= :move (typekw (:last-action* game))))
+                  (with-reason "soko blocked by monster"
+                    ->Search)))
+              (with-reason "push" (->Move (towards msrc mdest))))
+          (with-reason "boulder start"
+            (:step (navigate game msrc))))
+        (log/debug "soko no more moves")))))
 
 (defn soko-done? [game] (:soko-done game))
 
@@ -359,8 +495,22 @@
           (seek-level game :sokoban :end)
           (search-level game 1)))))
 
+(defn- stop-solver
+  "Cancels the background solver (if any) and forgets its result"
+  [game]
+  (when-let [{:keys [result]} (:soko-solver @game)]
+    (future-cancel result)
+    (swap! game dissoc :soko-solver)))
+
 (defn soko-handler [{:keys [game] :as bh}]
   (reify
+    DlvlChangeHandler
+    (dlvl-changed [_ _ _]
+      (stop-solver game))
+    GameStateHandler
+    (ended [_]
+      (stop-solver game))
+    (started [_])
     AboutToChooseActionHandler
     (about-to-choose [this {:keys [player last-state last-action* turn*]
                             :as game}]
@@ -368,7 +518,7 @@
         (when (and (not-any? hallu? [player (:player last-state)])
                    (= (:dlvl last-state) (:dlvl game))
                    (= (mimic-count game) (mimic-count last-state))
-                   (some (some-fn hole? pit?) (tile-seq (curlvl game)))
+                   (holes-left? (curlvl game))
                    ; new boulders? abandon all hope.
                    ; FIXME also loss of boulders (monsters with striking)
                    (< (boulder-count (curlvl last-state))
@@ -390,6 +540,7 @@
           (when (some #(perma-e? (at-curlvl last-state %)) prize)
             (swap! (:game bh) assoc :soko-done true)
             (log/warn "soko done!")
+            (stop-solver (:game bh))
             (deregister-handler bh this)))
         (if-let [dir (and (= :move (typekw last-action*)) (:dir last-action*))]
           (let [old-tile (at-curlvl last-state player)
@@ -406,7 +557,34 @@
               (swap! (:game bh) update-at old-player assoc :pushed* turn*)
               (swap! (:game bh) update-at player dissoc :pushed)
               (swap! (:game bh) update-at (in-direction player dir)
-                     assoc :pushed true))))))
+                     assoc :pushed true))))
+        (let [game @(:game bh)]
+          (if-let [{:keys [key] :as plan} (soko-plan game)]
+            (if (not= key (:key (:soko-step game)))
+              (swap! (:game bh) assoc :soko-step
+                     {:key key :step (soko-step game plan)}))))
+        (let [game @(:game bh)
+              {:keys [layout result]} (:soko-solver game)]
+          (when (and (not (soko-done? game))
+                     (soko-plan game)
+                     (nil? (:step (:soko-step game))))
+            (let [current (nth (boulder-layout (curlvl game)) 2)]
+              ; off the hard-coded solutions, solve in the background unless
+              ; the current layout is already being solved or on the plan
+              (when-not (or (= layout current)
+                            (and result (realized? result)
+                                 (contains? @result current)))
+                (if result (future-cancel result))
+                (log/info "soko off script, starting solver")
+                (swap! (:game bh) assoc :soko-solver
+                       {:layout current
+                        :result (future
+                                  (try
+                                    (solve-level game (config-get (:config bh)
+                                                                  :soko-solver-ms
+                                                                  3000))
+                                    (catch Exception e
+                                      (log/error e "soko solver failed"))))})))))))
     ActionChosenHandler
     (action-chosen [_ action]
       (if-let [bohname (and (:soko-4a (curlvl-tags @game))
@@ -0,0 +1,133 @@
+(ns bothack.speculation
+  "Speculative computation of the next action.  When the bot moves along a
+  path, the game state after a successful step is predicted and the
+  ActionHandlers are asked for the next action on a background thread while
+  NetHack and the scraper are still busy with the move.  When the real game
+  state (after the AboutToChooseActionHandlers have run) equals the prediction
+  in everything but what can't be predicted - turn counters, the turns
+  monsters were last seen, the walk history of the entered tile and keys the
+  handlers update for every action like :explore-cache - and the
+  ActionHandlers are the same, the speculated action is used instead of running
+  the handlers again, otherwise it is thrown away.
+
+  Handler (de)registrations done while speculating are deferred and only
+  applied when the action is used.  Other side effects of choose-action (like
+  swapping the game atom or other state of the bot) can't be undone, that's
+  why the mode is opt-in (:speculate in the configuration).  State the bot
+  keeps outside the game and updates in AboutToChooseActionHandlers is not
+  compared either."
+  (:require [clojure.tools.logging :as log]
+            [bothack.action :refer :all]
+            [bothack.delegator :refer :all]
+            [bothack.dungeon :refer :all]
+            [bothack.fov :refer [update-fov]]
+            [bothack.handlers :refer [*deferred-changes*]]
+            [bothack.position :refer :all]
+            [bothack.tile :refer [trap?]]
+            [bothack.util :refer :all])
+  (:import [bothack SpeculationStats]))
+
+(defn- predict
+  "Game state expected after the action (a step along a path) succeeds, nil
+  if the action is not predictable"
+  [game action]
+  (let [next-pos (firstv (:path action))]
+    (if (and (= :move (typekw action))
+             (more-than? 1 (:path action))
+             (= next-pos (in-direction (:player game) (:dir action))))
+      (-> game
+          (update :player assoc :x (:x next-pos) :y (:y next-pos))
+          (update :turn* inc)
+          (update-at next-pos #(-> %
+                                   (dissoc :blocked)
+                                   (update :first-walked (fn [t] (or t (:turn game))))
+                                   (assoc :walked (:turn game))))
+          ; what the Move handler does on the next known position
+          (cond-> (not (trap? (at-curlvl game next-pos)))
+            (update :player
+                    #(cond-> (assoc % :trapped false)
+                       (get-in game [:last-state :player :grabbed])
+                       (assoc :grabbed false))))
+          (update-fov next-pos)))))
+
+(defn- action-handlers
+  "The ActionHandlers with their priorities in the order they are asked.
+  Other handlers (like the ones actions register for a single turn) come and
+  go between the speculation and the real choice without affecting it."
+  [handlers]
+  (filterv #(satisfies? ActionHandler (key %)) handlers))
+
+(def ^:private bookkeeping
+  "Game keys handlers update for every action or frame that don't affect the
+  choice of the next action (reset-exploration replaces :explore-cache with a
+  new future before each choice)"
+  [:explore-cache :last-topline :last-autonav :autonav-stuck])
+
+(defn- comparable
+  "The game without what can't be predicted and the per-action bookkeeping.
+  The field of view is derived from the map and position, which are
+  compared."
+  [game]
+  (-> (apply dissoc game :frame :turn :turn* :fov bookkeeping)
+      (update-curlvl update :monsters
+                     #(into {} (for [[pos m] %] [pos (dissoc m :known)])))
+      (update-at-player dissoc :walked :first-walked)))
+
+(defn- matches?
+  "Is the real game state the predicted one?"
+  [predicted real]
+  (and (= (:dlvl predicted) (:dlvl real))
+       (= (:branch-id predicted) (:branch-id real))
+       (= (position (:player predicted)) (position (:player real)))
+       (= (comparable predicted) (comparable real))))
+
+(defn speculation-handler
+  "Starts a speculation on the next action when an action is chosen.  The
+  pending speculation is kept in the atom for choose-action-speculated."
+  [{:keys [game delegator] :as bh} speculation]
+  (reify ActionChosenHandler
+    (action-chosen [_ action]
+      (some-> @speculation :result future-cancel)
+      (reset! speculation nil)
+      ; runs after the current delegator action, when the other
+      ; ActionChosenHandlers have updated the game
+      (send delegator
+            (fn [d]
+              (when-let [predicted (predict @game action)]
+                (reset! speculation
+                        {:predicted predicted
+                         :handlers (action-handlers (:handlers d))
+                         :result (future
+                                   (binding [*deferred-changes* (atom [])]
+                                     (let [start (System/nanoTime)
+                                           action (speculate-action d predicted)
+                                           done (System/nanoTime)]
+                                       {:action action
+                                        :changes @*deferred-changes*
+                                        :done done
+                                        :nanos (- done start)})))}))
+              d)))))
+
+(defn choose-action-speculated
+  "Like choose-action on the delegator, but commits the speculated action if
+  it was computed for a matching game state."
+  [delegator game speculation ^SpeculationStats stats]
+  (let [{:keys [predicted handlers result]} @speculation
+        needed (System/nanoTime)]
+    (reset! speculation nil)
+    (cond
+      (nil? result) (do (.unpredicted stats)
+                        (choose-action delegator game))
+      (and (= handlers (action-handlers (:handlers delegator)))
+           (matches? predicted game)
+           (:action @result)) (let [{:keys [action changes done nanos]} @result]
+                                (log/debug "using speculated action")
+                                ; only the part computed before it was needed
+                                ; was saved
+                                (.hit stats (- nanos (max 0 (- done needed))))
+                                (doseq [change changes]
+                                  (change))
+                                (commit-action delegator action))
+      :else (do (future-cancel result)
+                (.miss stats)
+                (choose-action delegator game)))))
@@ -0,0 +1,65 @@
+(ns bothack.supervisor
+  "Runs a pool of worker JVMs, one for each given configuration (with
+  :worker true, see doc/config.md).  A worker plays games one after another in
+  the same warmed-up JVM; when its heap grows over :worker-max-heap-mb it exits
+  with recycle-status and the supervisor starts a fresh JVM in its place.  Any
+  other exit ends the worker.
+
+  Each worker runs in its own directory (worker-1, worker-2, ...) so the logs
+  and ttyrecs of the games don't mix, its console output goes to console.log
+  there.  JVM options for the workers can be given in the bothack.worker.opts
+  system property."
+  (:require [clojure.java.io :as io]
+            [clojure.string :as string]
+            [clojure.tools.logging :as log])
+  (:import [java.io File]
+           [java.lang ProcessBuilder$Redirect]))
+
+(def recycle-status
+  "Exit status of a worker asking for a fresh JVM"
+  75)
+
+(defn- classpath
+  "Classpath of this JVM with absolute paths (the workers run in other
+  directories)"
+  []
+  (->> (string/split (System/getProperty "java.class.path")
+                     (re-pattern File/pathSeparator))
+       (map #(.getAbsolutePath (io/file %)))
+       (string/join File/pathSeparator)))
+
+(defn- worker-command [config]
+  (concat [(str (System/getProperty "java.home") "/bin/java")]
+          (remove string/blank?
+                  (string/split (System/getProperty "bothack.worker.opts" "")
+                                #"\s+"))
+          ["-cp" (classpath)
+           "clojure.main" "-m" "bothack.main"
+           (.getAbsolutePath (io/file config))]))
+
+(defn- run-worker
+  "Runs the worker until it exits with other status than recycle-status."
+  [n config]
+  (let [dir (doto (io/file (str "worker-" n)) .mkdirs)]
+    (loop [runs 1]
+      (log/info "starting worker" n "for" config "- run" runs)
+      (let [status (-> (ProcessBuilder. ^java.util.List (worker-command config))
+                       (.directory dir)
+                       (.redirectErrorStream true)
+                       (.redirectOutput (ProcessBuilder$Redirect/appendTo
+                                          (io/file dir "console.log")))
+                       .start
+                       .waitFor)]
+        (if (= recycle-status status)
+          (recur (inc runs))
+          (log/info "worker" n "exited with status" status))))))
+
+(defn -main [& configs]
+  (if (empty? configs)
+    (println "usage: bothack.supervisor <worker-config.edn>...")
+    (->> configs
+         (map-indexed #(future (run-worker (inc %1) %2)))
+         doall
+         (map deref)
+         dorun))
+  (shutdown-agents))
@@ -16,6 +16,7 @@
            [de.mud.jta.event TelnetCommandRequest SetWindowSizeRequest
                              TerminalTypeListener LocalEchoListener
                              OnlineStatusListener]
+           [bothack JfrEvents JfrEvents$Kind]
            [java.io IOException])
   (:gen-class
     :name bothack.NHTerminal
@@ -121,10 +122,12 @@
       (loop []
         ;(println "Terminal: about to .read()")
         (let [n (.read ^FilterPlugin (:source state) buffer)] ; blocking read
-          (if (pos? n)
-            ; latin1 is the default JTA swears by
-            (.putString ^vt320 (:emulation state)
-                        (String. ^bytes buffer 0 n "latin1")))
+          (when (pos? n)
+            (let [event (JfrEvents/begin JfrEvents$Kind/TERMINAL_READ)]
+              ; latin1 is the default JTA swears by
+              (.putString ^vt320 (:emulation state)
+                          (String. ^bytes buffer 0 n "latin1"))
+              (JfrEvents/commit event nil n)))
           (if-not (neg? n) ; -1 would mean the stream is dead
             (recur))))
       (catch IOException e
@@ -146,12 +149,13 @@
                     ;(println "Terminal: redraw called")
                     ;(def x emulation)
                     ;(log/debug "redrawing rows:" (changed-rows (.update emulation)))
-                    (send (:delegator @state) redraw
-                          (:frame (swap! state update :frame
-                                         update-frame emulation
-                                         (changed-rows
-                                           (.update ^vt320 emulation)))))
-                    (java.util.Arrays/fill (.update ^vt320 emulation) false))
+                    (with-jfr-event REDRAW
+                      (send (:delegator @state) redraw
+                            (:frame (swap! state update :frame
+                                           update-frame emulation
+                                           (changed-rows
+                                             (.update ^vt320 emulation)))))
+                      (java.util.Arrays/fill (.update ^vt320 emulation) false)))
                   (updateScrollBar [_])
                   (setVDUBuffer [this-display buffer]
                     (.setDisplay buffer this-display))
@@ -3,7 +3,8 @@
             [clojure.pprint :as pprint]
             [bothack.position :refer [neighbors]]
             [bothack.item :refer :all]
-            [bothack.util :refer :all]))
+            [bothack.util :refer :all])
+  (:import [bothack.bot.dungeon ITile]))
 
 (defn digit? [tile]
   (Character/isDigit ^Character (:glyph tile)))
@@ -331,6 +332,13 @@
   [tile]
   (> (or (:blocked tile) 0) 12))
 
+(defn enum-ordinal
+  "Ordinal of the enum constant of cls for the keyword or -1"
+  ^long [cls kw]
+  (if-let [e (kw->enum cls kw)]
+    (.ordinal ^Enum e)
+    -1))
+
 (defrecord Tile
   [x y
    glyph
@@ -363,6 +371,8 @@
   (isTrap [tile] (boolean (trap? tile)))
   (isVibrating [tile] (boolean (:vibrating tile)))
   (feature [tile] (kw->enum bothack.bot.dungeon.Feature (:feature tile)))
+  (featureOrdinal [tile]
+    (enum-ordinal bothack.bot.dungeon.Feature (:feature tile)))
   (wasSeen [tile] (boolean (:seen tile)))
   (firstWalkedTurn [tile] (:first-walked tile))
   (lastWalkedTurn [tile] (:walked tile))
@@ -374,11 +384,29 @@
   (engravingType [tile] (kw->enum bothack.bot.dungeon.EngravingType
                                   (:engraving-type tile)))
   (room [tile] (kw->enum bothack.bot.dungeon.RoomType (:room tile)))
+  (roomOrdinal [tile] (enum-ordinal bothack.bot.dungeon.RoomType (:room tile)))
   (sinkGaveRing [tile] (some? (:ring (:tags tile))))
   (sinkGaveFoocubus [tile] (some? (:foocubus (:tags tile))))
   (sinkGavePudding [tile] (some? (:pudding (:tags tile))))
   (isBlocked [tile] (boolean (blocked? tile)))
   (leadsTo [tile] (kw->enum bothack.bot.dungeon.Branch (:branch-id tile)))
+  (leadsToOrdinal [tile]
+    (enum-ordinal bothack.bot.dungeon.Branch (:branch-id tile)))
+  (colorOrdinal [tile] (enum-ordinal bothack.bot.Color (:color tile)))
+  (flags [tile]
+    (cond-> 0
+      (e? tile) (bit-or ITile/ELBERETH)
+      (engravable? tile) (bit-or ITile/ENGRAVABLE)
+      (trap? tile) (bit-or ITile/TRAP)
+      (boulder? tile) (bit-or ITile/BOULDER)
+      (:seen tile) (bit-or ITile/SEEN)
+      (:dug tile) (bit-or ITile/DUG)
+      (:new-items tile) (bit-or ITile/NEW_ITEMS)
+      (:ring (:tags tile)) (bit-or ITile/SINK_GAVE_RING)
+      (:foocubus (:tags tile)) (bit-or ITile/SINK_GAVE_FOOCUBUS)
+      (:pudding (:tags tile)) (bit-or ITile/SINK_GAVE_PUDDING)
+      (:vibrating tile) (bit-or ITile/VIBRATING)
+      (blocked? tile) (bit-or ITile/BLOCKED)))
   (altarAlignment [tile] (kw->enum bothack.bot.Alignment (:alignment tile))))
 
 (defn initial-tile [x y]
@@ -13,7 +13,8 @@
             [bothack.level :refer :all]
             [bothack.player :refer :all]
             [bothack.util :refer :all]
-            [clojure.tools.logging :as log]))
+            [clojure.tools.logging :as log])
+  (:import [bothack DangerMap]))
 
 (defn- transfer-pair [{:keys [player] :as game} [old-monster monster]]
   (let [cur (monster-at game monster)]
@@ -107,6 +108,52 @@
                                              (dissoc old-monsters) vals))
           (reduce transfer-pair res (vals pairs)))))))
 
+(def ^:private danger-maps
+  "[branch-id dlvl] => {:monsters <last seen version> :map DangerMap}"
+  (atom {}))
+
+(defn- add-danger [^DangerMap dm sign m]
+  (when (hostile? m)
+    (let [[reach melee ranged] (monster-danger m)
+          ; remembered monsters may have moved away
+          weight (if (:remembered m) 1/2 1)]
+      (.addMonster dm (:x m) (:y m) reach (* weight melee) (* weight ranged)
+                   sign)))
+  dm)
+
+(defn danger-map
+  "Returns the DangerMap of hostile monsters of the level (walls are not
+  considered).  It is updated incrementally from the last version seen for the
+  level, only for the monsters that appeared, moved or changed."
+  ^bothack.DangerMap [level]
+  (let [k [(:branch-id level) (:dlvl level)]
+        monsters (:monsters level)
+        {old-monsters :monsters old-map :map} (get @danger-maps k)]
+    (if (identical? monsters old-monsters)
+      old-map
+      (let [dm (if old-map (.copy ^DangerMap old-map) (DangerMap.))
+            old-monsters (if old-map old-monsters {})]
+        (doseq [[pos m] old-monsters
+                :when (not= m (get monsters pos))]
+          (add-danger dm -1 m))
+        (doseq [[pos m] monsters
+                :when (not= m (get old-monsters pos))]
+          (add-danger dm 1 m))
+        (swap! danger-maps assoc k {:monsters monsters :map dm})
+        dm))))
+
+(defn danger
+  "Expected damage hostile monsters can deal to the player on the tile next
+  turn, 0 if none can reach it"
+  [level pos]
+  (.at (danger-map level) (:x pos) (:y pos)))
+
+(defn clear-danger-maps
+  "Drops the DangerMaps of all levels (when a new game starts in the same
+  JVM)."
+  []
+  (reset! danger-maps {}))
+
 (defn- mark-kill [game old-game]
   (if-let [dir (and (not (dizzy? (:player old-game)))
                     (not (hallu? (:player old-game)))
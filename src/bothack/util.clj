@@ -12,17 +12,18 @@
 (def priority-top (dec Integer/MIN_VALUE))
 (def priority-bottom (inc Integer/MAX_VALUE))
 
-(def kw->enum
-  (memoize (fn [cls kw]
-             (if kw
-               (as-> (name kw) res
-                 (string/replace res #"-" "_")
-                 (string/upper-case res)
-                 (Enum/valueOf cls res))))))
-
-(def enum->kw
-  (memoize (fn [v]
-             (if (or (nil? v) (keyword? v)) v (.getKeyword v)))))
+(defn kw->enum [cls kw]
+  (if kw
+    (or (bothack.EnumTables/fromKeyword cls kw)
+        (as-> (name kw) res
+          (string/replace res #"-" "_")
+          (string/upper-case res)
+          (Enum/valueOf cls res)))))
+
+(defn enum->kw [v]
+  (cond (or (nil? v) (keyword? v)) v
+        (instance? Enum v) (bothack.EnumTables/toKeyword v)
+        :else (.getKeyword v)))
 
 (defn ctrl
   "Returns a char representing CTRL+<ch>"
@@ -43,6 +44,40 @@
        (throw (IllegalStateException.
                 (str "Configuration missing key: " key))))))
 
+(def ^:dynamic *deadline*
+  "System/nanoTime value by which the current action should be chosen, nil if
+  there is no time limit.  Expensive computations (searches, scans) should
+  check deadline-passed? and return their best result so far, or call
+  search-aborted! if they have none and return nil."
+  nil)
+
+(def ^:dynamic *search-aborted*
+  "Atom set to true when a search gave up because of *deadline* (bound by
+  with-deadline)"
+  nil)
+
+(defn deadline-passed? []
+  (if-let [deadline *deadline*]
+    (neg? (- deadline (System/nanoTime)))
+    false))
+
+(defn search-aborted!
+  "Marks the action being chosen as based on a search that gave up because of
+  the deadline (its nil result doesn't mean there is no path).  Returns nil."
+  []
+  (some-> *search-aborted* (reset! true))
+  nil)
+
+(defn search-aborted? []
+  (boolean (some-> *search-aborted* deref)))
+
+(defmacro with-deadline
+  "Evaluates body with *deadline* set to nanos from now (no limit if nil)."
+  [nanos & body]
+  `(binding [*deadline* (if-let [n# ~nanos] (+ (System/nanoTime) n#))
+             *search-aborted* (atom false)]
+     ~@body))
+
 (defn firstv [v]
   (if (pos? (count v))
     (nth v 0)))
@@ -184,3 +219,21 @@
   (if (and x y)
     (max x y)
     (or x y)))
+
+(defmacro with-jfr-event
+  "Evaluates body inside a flight recorder event.  The spec is either a
+  JfrEvents$Kind constant name (like FULL_FRAME) or a vector of the kind and a
+  function of the body's result (possibly nil) returning the event detail.
+  Does nothing extra unless JfrEvents are enabled."
+  [spec & body]
+  (let [[kind detail-fn] (if (vector? spec) spec [spec])
+        event (gensym "event__")
+        res (gensym "res__")]
+    `(let [~event (bothack.JfrEvents/begin
+                    ~(symbol "bothack.JfrEvents$Kind" (name kind)))
+           ~res (do ~@body)]
+       (if ~event
+         (bothack.JfrEvents/commit ~event
+                                   ~(if detail-fn
+                                      `(some-> (~detail-fn ~res) str))))
+       ~res)))